@@ -0,0 +1,6 @@
+package ds;
+
+public interface Service
+{
+
+}
@@ -0,0 +1,10 @@
+package ds;
+
+import aQute.bnd.annotation.component.Component;
+
+@Component
+public class ServiceImpl
+    implements Service
+{
+
+}
@@ -0,0 +1,6 @@
+package foo;
+
+public class Bar
+{
+    
+}
\ No newline at end of file
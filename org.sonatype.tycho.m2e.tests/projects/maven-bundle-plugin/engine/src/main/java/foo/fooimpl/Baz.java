@@ -0,0 +1,6 @@
+package foo.fooimpl;
+
+public class Baz
+{
+    
+}
@@ -0,0 +1,7 @@
+package foo.impl;
+
+public class BarImpl
+    extends foo.Bar
+{
+    
+}
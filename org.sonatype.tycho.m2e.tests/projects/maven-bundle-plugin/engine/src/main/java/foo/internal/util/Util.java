@@ -0,0 +1,6 @@
+package foo.internal.util;
+
+public class Util
+{
+    
+}
@@ -0,0 +1,6 @@
+package up;
+
+public class Api
+{
+    
+}
@@ -0,0 +1,6 @@
+package importer;
+
+public class User
+{
+    public up.Api api;
+}
@@ -0,0 +1,5 @@
+package foo;
+
+public class Foo
+{
+}
@@ -0,0 +1,6 @@
+package foo;
+
+public class Ref
+{
+    public javax.naming.Context ref;
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.sonatype.tycho.m2e.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.eclipse.m2e.core.embedder.ArtifactKey;
+import org.eclipse.osgi.util.ManifestElement;
+
+/**
+ * Compares {@link EmbeddedArtifacts#readEmbeddedArtifacts(Path)} with reading the header through
+ * {@link java.util.jar.Manifest} and {@link ManifestElement}, on a large generated manifest. Not run as part of the
+ * test suite, run {@link #main(String[])} as a plain java application.
+ */
+public class EmbeddedArtifactsBenchmark
+{
+    private static final int ITERATIONS = 20000;
+
+    private static final int WARMUP = 5000;
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        Path manifest = Files.createTempFile( "MANIFEST", ".MF" );
+        try
+        {
+            writeManifest( manifest );
+
+            if ( !readWithManifest( manifest ).equals( EmbeddedArtifacts.readEmbeddedArtifacts( manifest ) ) )
+            {
+                throw new IllegalStateException( "Implementations return different results" );
+            }
+
+            for ( int i = 0; i < WARMUP; i++ )
+            {
+                readWithManifest( manifest );
+                EmbeddedArtifacts.readEmbeddedArtifacts( manifest );
+            }
+
+            long start = System.nanoTime();
+            for ( int i = 0; i < ITERATIONS; i++ )
+            {
+                readWithManifest( manifest );
+            }
+            long manifestTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int i = 0; i < ITERATIONS; i++ )
+            {
+                EmbeddedArtifacts.readEmbeddedArtifacts( manifest );
+            }
+            long scannerTime = System.nanoTime() - start;
+
+            System.out.printf( "manifest size %d bytes%n", Files.size( manifest ) );
+            System.out.printf( "java.util.jar.Manifest + ManifestElement: %d ns/op%n", manifestTime / ITERATIONS );
+            System.out.printf( "ManifestHeaderScanner: %d ns/op%n", scannerTime / ITERATIONS );
+        }
+        finally
+        {
+            Files.delete( manifest );
+        }
+    }
+
+    private static Map<ArtifactKey, String> readWithManifest( Path file )
+        throws Exception
+    {
+        Map<ArtifactKey, String> result = new LinkedHashMap<ArtifactKey, String>();
+        Manifest mf;
+        try (InputStream is = Files.newInputStream( file ))
+        {
+            mf = new Manifest( is );
+        }
+        String value = mf.getMainAttributes().getValue( "Embedded-Artifacts" );
+        for ( ManifestElement me : ManifestElement.parseHeader( "Embedded-Artifacts", value ) )
+        {
+            result.put( new ArtifactKey( me.getAttribute( "g" ), me.getAttribute( "a" ), me.getAttribute( "v" ),
+                                         me.getAttribute( "c" ) ), me.getValue() );
+        }
+        return result;
+    }
+
+    private static void writeManifest( Path file )
+        throws IOException
+    {
+        Manifest mf = new Manifest();
+        Attributes attributes = mf.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Bundle-ManifestVersion", "2" );
+        attributes.putValue( "Bundle-SymbolicName", "benchmark" );
+        attributes.putValue( "Import-Package", packages( "org.example.imported", 400, ";version=\"[1.0,2)\"" ) );
+        attributes.putValue( "Private-Package", packages( "org.example.internal", 400, "" ) );
+        attributes.putValue( "Include-Resource", packages( "lib/resource", 200, ".jar=target/resource.jar" ) );
+
+        StringBuilder embedded = new StringBuilder();
+        StringBuilder classpath = new StringBuilder( "." );
+        for ( int i = 0; i < 50; i++ )
+        {
+            if ( i > 0 )
+            {
+                embedded.append( ',' );
+            }
+            embedded.append( "lib/artifact" ).append( i ).append( ".jar;g=\"org.example\";a=\"artifact" ).append( i );
+            embedded.append( "\";v=\"1.0." ).append( i ).append( '"' );
+            if ( i % 5 == 0 )
+            {
+                embedded.append( ";c=\"sources\"" );
+            }
+            classpath.append( ",lib/artifact" ).append( i ).append( ".jar" );
+        }
+        attributes.putValue( "Bundle-ClassPath", classpath.toString() );
+        attributes.putValue( "Embedded-Artifacts", embedded.toString() );
+        attributes.putValue( "Export-Package", packages( "org.example.api", 200, ";version=\"1.0.0\"" ) );
+
+        try (OutputStream os = Files.newOutputStream( file ))
+        {
+            mf.write( os );
+        }
+    }
+
+    private static String packages( String prefix, int count, String suffix )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( i > 0 )
+            {
+                sb.append( ',' );
+            }
+            sb.append( prefix ).append( i ).append( suffix );
+        }
+        return sb.toString();
+    }
+}
@@ -18,6 +18,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.jar.Manifest;
 
 import org.eclipse.core.resources.ICommand;
@@ -37,9 +39,11 @@ import org.eclipse.m2e.core.internal.IMavenConstants;
 import org.eclipse.m2e.core.internal.project.ProjectConfigurationManager;
 import org.eclipse.m2e.core.project.IMavenProjectFacade;
 import org.eclipse.m2e.core.project.MavenUpdateRequest;
+import org.eclipse.m2e.core.project.ResolverConfiguration;
 import org.eclipse.m2e.jdt.IClasspathManager;
 import org.eclipse.m2e.tests.common.AbstractLifecycleMappingTest;
 import org.eclipse.m2e.tests.common.WorkspaceHelpers;
+import org.eclipse.osgi.util.ManifestElement;
 import org.eclipse.pde.core.plugin.IPluginModelBase;
 import org.eclipse.pde.core.plugin.PluginRegistry;
 import org.eclipse.pde.internal.core.natures.PDE;
@@ -49,6 +53,9 @@ import org.junit.Test;
 public class MavenBundlePluginTest
     extends AbstractLifecycleMappingTest
 {
+    private static final String PROP_BND_INPROCESS = "m2e.tycho.bnd.inprocess";
+
+    private static final String MOJO_CREATED_BY = "Apache Maven Bundle Plugin";
 
 	@Test
     public void testImport()
@@ -329,6 +336,32 @@ public class MavenBundlePluginTest
         assertTrue( cfile.exists() );
     }
 
+    @Test
+    public void testDeclerativeServicesEmbedDependency()
+        throws Exception
+    {
+        IMavenProjectFacade facade =
+            importMavenProject( "projects/maven-bundle-plugin/embed-dependency/declerative-services", "pom.xml" );
+        waitForJobsToComplete();
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        assertNoErrors( facade.getProject() );
+
+        IProject project = facade.getProject();
+        IFile mfile = project.getFile( "META-INF/MANIFEST.MF" );
+
+        Manifest mf = loadManifest( mfile );
+        assertEquals( "OSGI-INF/ds.ServiceImpl.xml", mf.getMainAttributes().getValue( "Service-Component" ) );
+        assertEquals( ".,decentxml-1.3.jar", mf.getMainAttributes().getValue( "Bundle-ClassPath" ) );
+
+        IFile cfile = project.getFile( "target/classes/OSGI-INF/ds.ServiceImpl.xml" );
+        assertTrue( cfile.exists() );
+
+        // embedded jar is referenced in place, not copied to the output folder
+        IFile jfile = project.getFile( "target/classes/decentxml-1.3.jar" );
+        jfile.getParent().refreshLocal( IResource.DEPTH_ONE, monitor );
+        assertFalse( jfile.exists() );
+    }
+
     @Test
     public void testCleanVersions()
             throws Exception
@@ -348,6 +381,239 @@ public class MavenBundlePluginTest
 
     }
 
+    @Test
+    public void testIncrementalPackageReferenceChange()
+        throws Exception
+    {
+        IMavenProjectFacade facade = importMavenProject( "projects/maven-bundle-plugin/incremental", "pom.xml" );
+        IProject project = facade.getProject();
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        IFile mfile = project.getFile( "META-INF/MANIFEST.MF" );
+        Set<String> imports = getPackages( loadManifest( mfile ), "Import-Package" );
+        assertTrue( imports.toString(), imports.contains( "javax.naming" ) );
+
+        // class file size does not change, only the referenced package does
+        copyContent( project, "src/main/java/foo/Ref.java-sql", "src/main/java/foo/Ref.java" );
+        workspace.build( IncrementalProjectBuilder.INCREMENTAL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        imports = getPackages( loadManifest( mfile ), "Import-Package" );
+        assertTrue( imports.toString(), imports.contains( "javax.sql" ) );
+        assertFalse( imports.toString(), imports.contains( "javax.naming" ) );
+    }
+
+    @Test
+    public void testIncrementalPackageReferenceChangeAfterCacheLoss()
+        throws Exception
+    {
+        IMavenProjectFacade facade = importMavenProject( "projects/maven-bundle-plugin/incremental", "pom.xml" );
+        IProject project = facade.getProject();
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        // closed projects are removed from m2e registry, which drops in-memory caches like workbench restart does
+        project.close( monitor );
+        project.open( monitor );
+        waitForJobsToComplete();
+
+        copyContent( project, "src/main/java/foo/Ref.java-sql", "src/main/java/foo/Ref.java" );
+        workspace.build( IncrementalProjectBuilder.INCREMENTAL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        IFile mfile = project.getFile( "META-INF/MANIFEST.MF" );
+        Set<String> imports = getPackages( loadManifest( mfile ), "Import-Package" );
+        assertTrue( imports.toString(), imports.contains( "javax.sql" ) );
+        assertFalse( imports.toString(), imports.contains( "javax.naming" ) );
+    }
+
+    @Test
+    public void testUpstreamExportChange()
+        throws Exception
+    {
+        IProject[] projects =
+            importProjects( "projects/maven-bundle-plugin/export-change",
+                            new String[] { "exporter/pom.xml", "importer/pom.xml" }, new ResolverConfiguration() );
+        IProject exporter = projects[0];
+        IProject importer = projects[1];
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( exporter );
+        assertNoErrors( importer );
+
+        IFile mfile = importer.getFile( "META-INF/MANIFEST.MF" );
+        assertEquals( "[1.0,2)", getImportVersion( loadManifest( mfile ), "up" ) );
+
+        // importer itself does not change, its manifest is regenerated because exports of exporter changed
+        copyContent( exporter, "pom.xml-changed-export-version", "pom.xml" );
+        workspace.build( IncrementalProjectBuilder.INCREMENTAL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( exporter );
+        assertNoErrors( importer );
+
+        assertEquals( "[2.0,3)", getImportVersion( loadManifest( mfile ), "up" ) );
+    }
+
+    @Test
+    public void testFullBuildAfterSessionStateLoss()
+        throws Exception
+    {
+        IProject[] projects =
+            importProjects( "projects/maven-bundle-plugin/export-change",
+                            new String[] { "exporter/pom.xml", "importer/pom.xml" }, new ResolverConfiguration() );
+        IProject exporter = projects[0];
+        IProject importer = projects[1];
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( exporter );
+        assertNoErrors( importer );
+
+        IFile mfile = importer.getFile( "META-INF/MANIFEST.MF" );
+        String stamp = getBuildStamp( mfile );
+        assertNotNull( stamp );
+
+        // closed projects are removed from m2e registry, which drops in-memory caches like workbench restart does.
+        // importer is closed first and opened last, so it does not see dependency changes
+        importer.close( monitor );
+        exporter.close( monitor );
+        exporter.open( monitor );
+        importer.open( monitor );
+        waitForJobsToComplete();
+
+        // exporter is not indexed yet when importer is built first
+        importer.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( importer );
+        assertEquals( stamp, getBuildStamp( mfile ) );
+
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( exporter );
+        assertNoErrors( importer );
+        assertEquals( stamp, getBuildStamp( mfile ) );
+    }
+
+    private String getImportVersion( Manifest mf, String pkg )
+        throws Exception
+    {
+        String value = mf.getMainAttributes().getValue( "Import-Package" );
+        if ( value != null )
+        {
+            for ( ManifestElement element : ManifestElement.parseHeader( "Import-Package", value ) )
+            {
+                if ( Arrays.asList( element.getValueComponents() ).contains( pkg ) )
+                {
+                    return element.getAttribute( "version" );
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testFullBuildWithUnchangedInputs()
+        throws Exception
+    {
+        IMavenProjectFacade facade = importMavenProject( "projects/maven-bundle-plugin/fingerprint", "pom.xml" );
+        IProject project = facade.getProject();
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        // Build-Stamp changes every time the mojo runs
+        IFile mfile = project.getFile( "META-INF/MANIFEST.MF" );
+        String stamp = getBuildStamp( mfile );
+        assertNotNull( stamp );
+
+        // "Clean all projects"
+        workspace.build( IncrementalProjectBuilder.CLEAN_BUILD, monitor );
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+        assertEquals( stamp, getBuildStamp( mfile ) );
+
+        // missing manifest is regenerated
+        mfile.delete( true, monitor );
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+        assertFalse( stamp.equals( getBuildStamp( mfile ) ) );
+    }
+
+    private String getBuildStamp( IFile mfile )
+        throws Exception
+    {
+        return loadManifest( mfile ).getMainAttributes().getValue( "Build-Stamp" );
+    }
+
+    @Test
+    public void testInProcessManifestMatchesMojo()
+        throws Exception
+    {
+        IMavenProjectFacade facade = importMavenProject( "projects/maven-bundle-plugin/engine", "pom.xml" );
+        IProject project = facade.getProject();
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+        assertNoErrors( project );
+
+        // generated by the mojo, the engine is disabled by default
+        IFile mfile = project.getFile( "META-INF/MANIFEST.MF" );
+        Manifest expected = loadManifest( mfile );
+        assertEquals( MOJO_CREATED_BY, expected.getMainAttributes().getValue( "Created-By" ) );
+
+        System.setProperty( PROP_BND_INPROCESS, "true" );
+        try
+        {
+            // missing manifest is regenerated even though no other input changed
+            mfile.delete( true, monitor );
+            workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+            waitForJobsToComplete();
+            assertNoErrors( project );
+        }
+        finally
+        {
+            System.clearProperty( PROP_BND_INPROCESS );
+        }
+
+        Manifest actual = loadManifest( mfile );
+        assertFalse( "manifest generated by the mojo",
+                     MOJO_CREATED_BY.equals( actual.getMainAttributes().getValue( "Created-By" ) ) );
+
+        for ( String header : new String[] { "Bundle-SymbolicName", "Bundle-Version", "Bundle-Name" } )
+        {
+            assertEquals( header, expected.getMainAttributes().getValue( header ),
+                          actual.getMainAttributes().getValue( header ) );
+        }
+        // bnd versions differ, only compare package names
+        for ( String header : new String[] { "Export-Package", "Import-Package" } )
+        {
+            assertEquals( header, getPackages( expected, header ), getPackages( actual, header ) );
+        }
+        // foo.impl and foo.internal.util are private, foo.fooimpl is not
+        assertEquals( new TreeSet<String>( Arrays.asList( "foo", "foo.fooimpl" ) ),
+                      getPackages( actual, "Export-Package" ) );
+    }
+
+    private Set<String> getPackages( Manifest mf, String header )
+        throws Exception
+    {
+        Set<String> packages = new TreeSet<String>();
+        String value = mf.getMainAttributes().getValue( header );
+        if ( value != null )
+        {
+            for ( ManifestElement element : ManifestElement.parseHeader( header, value ) )
+            {
+                packages.addAll( Arrays.asList( element.getValueComponents() ) );
+            }
+        }
+        return packages;
+    }
+
     private Manifest loadManifest( IFile mfile )
         throws IOException, CoreException
     {
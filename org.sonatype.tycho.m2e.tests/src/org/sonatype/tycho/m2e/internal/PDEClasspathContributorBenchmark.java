@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.sonatype.tycho.m2e.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.m2e.core.project.ResolverConfiguration;
+import org.eclipse.m2e.tests.common.AbstractLifecycleMappingTest;
+import org.eclipse.osgi.service.resolver.BundleDescription;
+import org.eclipse.pde.core.plugin.IPluginModelBase;
+import org.eclipse.pde.core.plugin.PluginRegistry;
+import org.junit.Test;
+
+/**
+ * Compares per-dependency and batch {@link PDEClasspathContributor} lookups, see
+ * {@link PDEClasspathContributor#PROP_BATCH}, on {@link #BUNDLES} generated maven bundles that embed a dependency,
+ * each requiring the previous bundle. Not part of the test suite, run as JUnit plug-in test.
+ */
+public class PDEClasspathContributorBenchmark
+    extends AbstractLifecycleMappingTest
+{
+    private static final int BUNDLES = 300;
+
+    private static final int ROUNDS = 20;
+
+    @Test
+    public void benchmarkClasspathContribution()
+        throws Exception
+    {
+        String[] poms = generateProjects( new File( "target/classpath-benchmark" ) );
+        IProject[] projects = importProjects( "target/classpath-benchmark", poms, new ResolverConfiguration() );
+        workspace.build( IncrementalProjectBuilder.FULL_BUILD, monitor );
+        waitForJobsToComplete();
+
+        List<BundleDescription> bundles = new ArrayList<BundleDescription>();
+        for ( IProject project : projects )
+        {
+            IPluginModelBase model = PluginRegistry.findModel( project );
+            assertNotNull( project.getName(), model );
+            bundles.add( model.getBundleDescription() );
+        }
+
+        PDEClasspathContributor contributor = new PDEClasspathContributor();
+        String batch = System.getProperty( PDEClasspathContributor.PROP_BATCH );
+        try
+        {
+            System.setProperty( PDEClasspathContributor.PROP_BATCH, "false" );
+            List<List<IClasspathEntry>> expected = contribute( contributor, bundles );
+            long perDependency = time( contributor, bundles );
+
+            System.setProperty( PDEClasspathContributor.PROP_BATCH, "true" );
+            assertEquals( expected, contribute( contributor, bundles ) );
+            long batched = time( contributor, bundles );
+
+            System.out.printf( "%d bundles, per-dependency lookup: %d us/round, batch lookup: %d us/round%n",
+                               bundles.size(), perDependency / ROUNDS / 1000, batched / ROUNDS / 1000 );
+        }
+        finally
+        {
+            if ( batch != null )
+            {
+                System.setProperty( PDEClasspathContributor.PROP_BATCH, batch );
+            }
+            else
+            {
+                System.clearProperty( PDEClasspathContributor.PROP_BATCH );
+            }
+        }
+    }
+
+    private long time( PDEClasspathContributor contributor, List<BundleDescription> bundles )
+    {
+        long start = System.nanoTime();
+        for ( int i = 0; i < ROUNDS; i++ )
+        {
+            contribute( contributor, bundles );
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Mimics PDE classpath computation of all bundles, initial entries followed by entries of each dependency.
+     */
+    private List<List<IClasspathEntry>> contribute( PDEClasspathContributor contributor,
+                                                    List<BundleDescription> bundles )
+    {
+        List<List<IClasspathEntry>> result = new ArrayList<List<IClasspathEntry>>();
+        for ( BundleDescription bundle : bundles )
+        {
+            result.add( contributor.getInitialEntries( bundle ) );
+            for ( BundleDescription dependency : bundle.getResolvedRequires() )
+            {
+                result.add( contributor.getEntriesForDependency( bundle, dependency ) );
+            }
+        }
+        return result;
+    }
+
+    private String[] generateProjects( File basedir )
+        throws Exception
+    {
+        File templateFile = new File( "projects/maven-bundle-plugin/embed-dependency/maven/pom.xml" );
+        String template = new String( Files.readAllBytes( templateFile.toPath() ), StandardCharsets.UTF_8 );
+        String[] poms = new String[BUNDLES];
+        for ( int i = 0; i < BUNDLES; i++ )
+        {
+            String pom =
+                template.replace( "<artifactId>maven</artifactId>", "<artifactId>bundle-" + i + "</artifactId>" );
+            if ( i > 0 )
+            {
+                pom = pom.replace( "<Import-Package>", "<Require-Bundle>bundle-" + ( i - 1 )
+                    + "</Require-Bundle>\n            <Import-Package>" );
+            }
+            File dir = new File( basedir, "bundle-" + i );
+            dir.mkdirs();
+            Files.write( new File( dir, "pom.xml" ).toPath(), pom.getBytes( StandardCharsets.UTF_8 ) );
+            poms[i] = "bundle-" + i + "/pom.xml";
+        }
+        return poms;
+    }
+}
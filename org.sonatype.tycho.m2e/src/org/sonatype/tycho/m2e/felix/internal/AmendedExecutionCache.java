@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.descriptor.MojoDescriptor;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.m2e.core.project.configurator.MojoExecutionKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.tycho.m2e.internal.Tracing;
+
+/**
+ * Cache of mojo executions amended by {@link MavenBundlePluginConfigurator#amendMojoExecution} and of {@code manifest}
+ * goal mojo descriptors used in place of {@code bundle} goal.
+ * <p>
+ * Amended executions are keyed by mojo execution key, raw (not evaluated) mojo configuration and whether generated
+ * bundle is unpacked, so projects that share plugin configuration, for example inherited from a common parent,
+ * share the same amended execution. Descriptors are keyed by plugin GAV. Plugin realms are not cached here, maven
+ * plugin manager already keeps one realm per plugin GAV and project class loading setup. Cached entries are only used
+ * while they refer to the same plugin descriptor, and thus the same plugin realm, as the original execution.
+ * <p>
+ * {@link MojoExecution} is mutable, every caller gets its own copy of the cached amended execution, so concurrent
+ * regeneration workers never share an execution instance. Only the mojo descriptor is shared.
+ * <p>
+ * Each project owns the entries it last used for each of its executions. Entries are evicted once no project owns
+ * them, i.e. when the last project that used an entry is removed, changes the execution configuration or the
+ * maven-bundle-plugin version. Descriptors are evicted with the last cached execution of their plugin.
+ * <p>
+ * Hit and miss counts are logged with {@link Tracing#MANIFEST} tracing on every lookup.
+ */
+class AmendedExecutionCache
+{
+    private static final Logger log = LoggerFactory.getLogger( AmendedExecutionCache.class );
+
+    private static final AmendedExecutionCache INSTANCE = new AmendedExecutionCache();
+
+    private final Map<String, MojoExecution> executions = new ConcurrentHashMap<String, MojoExecution>();
+
+    private final Map<String, MojoDescriptor> descriptors = new ConcurrentHashMap<String, MojoDescriptor>();
+
+    /**
+     * project -> mojo execution key and unpack flag -> key of the cached execution the project last used. Guarded by
+     * this.
+     */
+    private final Map<IProject, Map<String, String>> projectKeys = new HashMap<IProject, Map<String, String>>();
+
+    /**
+     * key of cached execution -> projects that use it. Guarded by this.
+     */
+    private final Map<String, Set<IProject>> owners = new HashMap<String, Set<IProject>>();
+
+    private final AtomicLong executionHits = new AtomicLong();
+
+    private final AtomicLong executionMisses = new AtomicLong();
+
+    private final AtomicLong descriptorHits = new AtomicLong();
+
+    private final AtomicLong descriptorMisses = new AtomicLong();
+
+    private AmendedExecutionCache()
+    {
+    }
+
+    public static AmendedExecutionCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public MojoExecution getExecution( IProject project, MojoExecution execution, boolean unpackBundle,
+                                       Supplier<MojoExecution> amender )
+    {
+        String slot = new MojoExecutionKey( execution ).toString() + "#" + unpackBundle;
+        String key = slot + "#" + execution.getConfiguration();
+        own( project, slot, key );
+        MojoExecution amended = executions.get( key );
+        if ( amended != null && isSamePlugin( amended.getMojoDescriptor(), execution ) )
+        {
+            executionHits.incrementAndGet();
+            Tracing.trace( log, Tracing.MANIFEST, "Amended mojo execution {} of {} found in cache, {}",
+                           execution.getExecutionId(), project.getName(), this );
+            return copy( amended );
+        }
+        executionMisses.incrementAndGet();
+        amended = amender.get();
+        synchronized ( this )
+        {
+            // not cached if the project was removed in the meantime
+            if ( owners.containsKey( key ) )
+            {
+                executions.put( key, amended );
+            }
+        }
+        Tracing.trace( log, Tracing.MANIFEST, "Amended mojo execution {} of {} cached, {}", execution.getExecutionId(),
+                       project.getName(), this );
+        return copy( amended );
+    }
+
+    private synchronized void own( IProject project, String slot, String key )
+    {
+        Map<String, String> keys = projectKeys.get( project );
+        if ( keys == null )
+        {
+            keys = new HashMap<String, String>();
+            projectKeys.put( project, keys );
+        }
+        String previous = keys.put( slot, key );
+        if ( !key.equals( previous ) )
+        {
+            Set<IProject> projects = owners.get( key );
+            if ( projects == null )
+            {
+                projects = new HashSet<IProject>();
+                owners.put( key, projects );
+            }
+            projects.add( project );
+            if ( previous != null )
+            {
+                release( project, previous );
+            }
+        }
+    }
+
+    /**
+     * Evicts entries only used by the project, entries shared with other projects are kept.
+     */
+    public synchronized void remove( IProject project )
+    {
+        Map<String, String> keys = projectKeys.remove( project );
+        if ( keys != null )
+        {
+            for ( String key : keys.values() )
+            {
+                release( project, key );
+            }
+        }
+    }
+
+    private void release( IProject project, String key )
+    {
+        Set<IProject> projects = owners.get( key );
+        if ( projects == null || !projects.remove( project ) || !projects.isEmpty() )
+        {
+            return;
+        }
+        owners.remove( key );
+        MojoExecution removed = executions.remove( key );
+        if ( removed == null )
+        {
+            return;
+        }
+        String pluginKey = removed.getPlugin().getId();
+        for ( MojoExecution cached : executions.values() )
+        {
+            if ( pluginKey.equals( cached.getPlugin().getId() ) )
+            {
+                return;
+            }
+        }
+        descriptors.remove( pluginKey );
+        Tracing.trace( log, Tracing.MANIFEST, "Cached {} mojo executions evicted, {}", pluginKey, this );
+    }
+
+    private static MojoExecution copy( MojoExecution execution )
+    {
+        MojoExecution copy =
+            new MojoExecution( execution.getPlugin(), execution.getGoal(), execution.getExecutionId() );
+        copy.setMojoDescriptor( execution.getMojoDescriptor() );
+        copy.setLifecyclePhase( execution.getLifecyclePhase() );
+        copy.setConfiguration( new Xpp3Dom( execution.getConfiguration() ) );
+        return copy;
+    }
+
+    public MojoDescriptor getDescriptor( MojoExecution execution, Supplier<MojoDescriptor> factory )
+    {
+        String key = execution.getPlugin().getId();
+        MojoDescriptor descriptor = descriptors.get( key );
+        if ( descriptor != null && isSamePlugin( descriptor, execution ) )
+        {
+            descriptorHits.incrementAndGet();
+            Tracing.trace( log, Tracing.MANIFEST, "Manifest goal descriptor of {} found in cache, {}", key, this );
+            return descriptor;
+        }
+        descriptorMisses.incrementAndGet();
+        descriptor = factory.get();
+        descriptors.put( key, descriptor );
+        Tracing.trace( log, Tracing.MANIFEST, "Manifest goal descriptor of {} cached, {}", key, this );
+        return descriptor;
+    }
+
+    private static boolean isSamePlugin( MojoDescriptor descriptor, MojoExecution execution )
+    {
+        return descriptor.getPluginDescriptor() == execution.getMojoDescriptor().getPluginDescriptor();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "executions " + executionHits + "/" + executionMisses + " (hits/misses), descriptors " + descriptorHits
+            + "/" + descriptorMisses + " (hits/misses)";
+    }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Workspace-wide cache of parsed bnd files and of parsed {@code _include} instructions.
+ * <p>
+ * The same bnd file is often included by many projects and is read several times during each build of each of them.
+ * Parsed files are keyed by absolute path and invalidated when file modification timestamp or length changes, entries
+ * of deleted files are evicted the next time they are requested. Both parsed files and parsed {@code _include}
+ * instructions are kept for at most {@link #MAX_ENTRIES} least recently used keys, entries of files and instructions
+ * that are no longer used by any project are eventually evicted.
+ */
+public class BndFileCache
+{
+    private static final Logger log = LoggerFactory.getLogger( BndFileCache.class );
+
+    private static final BndFileCache INSTANCE = new BndFileCache();
+
+    private static class BndFile
+    {
+        final long lastModified;
+
+        final long length;
+
+        final Map<String, String> properties;
+
+        BndFile( long lastModified, long length, Map<String, String> properties )
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.properties = properties;
+        }
+    }
+
+    private static final int MAX_ENTRIES = 512;
+
+    private final Map<File, BndFile> files = newLruMap();
+
+    private final Map<String, List<String>> includes = newLruMap();
+
+    private BndFileCache()
+    {
+    }
+
+    public static BndFileCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private static <K, V> Map<K, V> newLruMap()
+    {
+        return Collections.synchronizedMap( new LinkedHashMap<K, V>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<K, V> eldest )
+            {
+                return size() > MAX_ENTRIES;
+            }
+        } );
+    }
+
+    /**
+     * Returns unmodifiable map of properties defined in the bnd file or empty map if the file can not be read.
+     */
+    public Map<String, String> getProperties( File file )
+    {
+        file = file.getAbsoluteFile();
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if ( lastModified == 0L )
+        {
+            files.remove( file );
+            return Collections.emptyMap();
+        }
+
+        BndFile cached = files.get( file );
+        if ( cached != null && cached.lastModified == lastModified && cached.length == length )
+        {
+            return cached.properties;
+        }
+
+        Map<String, String> properties = load( file );
+        files.put( file, new BndFile( lastModified, length, properties ) );
+        return properties;
+    }
+
+    private static Map<String, String> load( File file )
+    {
+        // Properties class can be used to read bnd files http://www.aqute.biz/Bnd/Format
+        Properties properties = new Properties();
+        try (InputStream is = new BufferedInputStream( new FileInputStream( file ) ))
+        {
+            properties.load( is );
+        }
+        catch ( IOException e )
+        {
+            // TODO create error marker
+            log.debug( "Could not read bnd file {}", file, e );
+            return Collections.emptyMap();
+        }
+        Map<String, String> map = new LinkedHashMap<>();
+        for ( String key : properties.stringPropertyNames() )
+        {
+            map.put( key, properties.getProperty( key ) );
+        }
+        return Collections.unmodifiableMap( map );
+    }
+
+    /**
+     * Returns parsed value of {@code _include} instruction.
+     */
+    public List<String> getIncludePaths( String include, Function<String, List<String>> parser )
+    {
+        return includes.computeIfAbsent( include, i -> Collections.unmodifiableList( parser.apply( i ) ) );
+    }
+}
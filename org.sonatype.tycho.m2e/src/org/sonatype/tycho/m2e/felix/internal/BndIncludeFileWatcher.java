@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches bnd files included from outside of project basedir, which are not visible to build participant resource
+ * deltas.
+ * <p>
+ * Each distinct directory is registered with {@link WatchService} once, regardless of number of included files and
+ * projects. When a watched file changes, manifest regeneration is scheduled for the projects that include the file.
+ * Directories that can no longer be watched, e.g. because they were deleted, are registered again when a project that
+ * includes files from them is built.
+ */
+public class BndIncludeFileWatcher
+{
+    private static final Logger log = LoggerFactory.getLogger( BndIncludeFileWatcher.class );
+
+    private static final BndIncludeFileWatcher INSTANCE = new BndIncludeFileWatcher();
+
+    private WatchService watchService;
+
+    private Thread watchThread;
+
+    /**
+     * watched directory -> watch key
+     */
+    private final Map<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+
+    /**
+     * watched file -> projects that include the file
+     */
+    private final Map<Path, Set<IProject>> files = new HashMap<Path, Set<IProject>>();
+
+    /**
+     * project -> watched files included by the project
+     */
+    private final Map<IProject, Set<Path>> projects = new HashMap<IProject, Set<Path>>();
+
+    private BndIncludeFileWatcher()
+    {
+    }
+
+    public static BndIncludeFileWatcher getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces the set of external bnd files included by the project.
+     */
+    public synchronized void setIncludes( IProject project, Collection<File> includes )
+    {
+        Set<Path> paths = new HashSet<Path>();
+        for ( File include : includes )
+        {
+            paths.add( include.toPath().toAbsolutePath().normalize() );
+        }
+
+        Set<Path> previous = projects.get( project );
+        if ( previous == null ? paths.isEmpty() : previous.equals( paths ) )
+        {
+            // directories whose watch key became invalid, e.g. deleted and recreated, are registered again
+            for ( Path path : paths )
+            {
+                watch( path.getParent() );
+            }
+            return;
+        }
+
+        if ( previous != null )
+        {
+            for ( Path path : previous )
+            {
+                Set<IProject> dependents = files.get( path );
+                dependents.remove( project );
+                if ( dependents.isEmpty() )
+                {
+                    files.remove( path );
+                    unwatch( path.getParent() );
+                }
+            }
+        }
+
+        if ( paths.isEmpty() )
+        {
+            projects.remove( project );
+            return;
+        }
+
+        projects.put( project, paths );
+        for ( Path path : paths )
+        {
+            Set<IProject> dependents = files.get( path );
+            if ( dependents == null )
+            {
+                dependents = new HashSet<IProject>();
+                files.put( path, dependents );
+                watch( path.getParent() );
+            }
+            dependents.add( project );
+        }
+    }
+
+    private void watch( Path directory )
+    {
+        if ( directory == null || directories.containsKey( directory ) )
+        {
+            return;
+        }
+        try
+        {
+            if ( watchService == null )
+            {
+                watchService = FileSystems.getDefault().newWatchService();
+                watchThread = new Thread( this::processEvents, "bnd include file watcher" );
+                watchThread.setDaemon( true );
+                watchThread.start();
+            }
+            directories.put( directory, directory.register( watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE ) );
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Could not watch directory {}", directory, e );
+        }
+    }
+
+    private void unwatch( Path directory )
+    {
+        for ( Path file : files.keySet() )
+        {
+            if ( file.getParent().equals( directory ) )
+            {
+                return; // other files in the directory are still watched
+            }
+        }
+        WatchKey key = directories.remove( directory );
+        if ( key != null )
+        {
+            key.cancel();
+        }
+    }
+
+    private void processEvents()
+    {
+        WatchService service;
+        synchronized ( this )
+        {
+            service = watchService;
+        }
+        while ( true )
+        {
+            WatchKey key;
+            try
+            {
+                key = service.take();
+            }
+            catch ( InterruptedException | ClosedWatchServiceException e )
+            {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            Set<IProject> changed = new LinkedHashSet<IProject>();
+            for ( WatchEvent<?> event : key.pollEvents() )
+            {
+                synchronized ( this )
+                {
+                    if ( event.kind() == OVERFLOW )
+                    {
+                        // events were lost, assume all files in the directory changed
+                        for ( Map.Entry<Path, Set<IProject>> entry : files.entrySet() )
+                        {
+                            if ( directory.equals( entry.getKey().getParent() ) )
+                            {
+                                changed.addAll( entry.getValue() );
+                            }
+                        }
+                    }
+                    else
+                    {
+                        Set<IProject> dependents = files.get( directory.resolve( (Path) event.context() ) );
+                        if ( dependents != null )
+                        {
+                            changed.addAll( dependents );
+                        }
+                    }
+                }
+            }
+            if ( !key.reset() )
+            {
+                // the directory is no longer accessible, e.g. deleted. Forget the key so the directory is registered
+                // again by the next build of a dependent project, and regenerate dependents in case events were lost
+                synchronized ( this )
+                {
+                    directories.remove( directory, key );
+                    for ( Map.Entry<Path, Set<IProject>> entry : files.entrySet() )
+                    {
+                        if ( directory.equals( entry.getKey().getParent() ) )
+                        {
+                            changed.addAll( entry.getValue() );
+                        }
+                    }
+                }
+            }
+
+            if ( !changed.isEmpty() )
+            {
+                // the scheduler also coalesces multiple events editors and version control tools generate
+                try
+                {
+                    ManifestRegenerationScheduler.getInstance().schedule( changed );
+                }
+                catch ( CoreException e )
+                {
+                    log.debug( "Could not schedule manifest regeneration", e );
+                }
+            }
+        }
+    }
+
+    public synchronized void dispose()
+    {
+        if ( watchService != null )
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch ( IOException e )
+            {
+                log.debug( "Could not close watch service", e );
+            }
+            watchService = null;
+            watchThread = null;
+        }
+        directories.clear();
+        files.clear();
+        projects.clear();
+    }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.Builder;
+import aQute.bnd.osgi.Jar;
+import aQute.bnd.osgi.Resource;
+
+/**
+ * The only class that references bnd API directly. bnd is an optional dependency and this class must not be loaded
+ * unless {@link BndManifestEngine#isEnabled()}.
+ */
+class BndManifestBuilder
+{
+    private static final Logger log = LoggerFactory.getLogger( BndManifestBuilder.class );
+
+    private static final String OSGI_INF = "OSGI-INF/";
+
+    public static List<File> build( File basedir, Properties properties, File[] classpath, File manifestFile,
+                                    File outputDirectory )
+        throws Exception
+    {
+        try (Builder builder = new Builder())
+        {
+            builder.setBase( basedir );
+            builder.setProperties( properties );
+            builder.setClasspath( classpath );
+
+            try (Jar jar = builder.build())
+            {
+                if ( !builder.getErrors().isEmpty() )
+                {
+                    log.debug( "bnd reported errors {}", builder.getErrors() );
+                    return null;
+                }
+
+                List<File> files = new ArrayList<File>();
+
+                manifestFile.getParentFile().mkdirs();
+                try (OutputStream os = new BufferedOutputStream( new FileOutputStream( manifestFile ) ))
+                {
+                    Jar.writeManifest( jar.getManifest(), os );
+                }
+                files.add( manifestFile );
+
+                for ( Map.Entry<String, Resource> entry : jar.getResources().entrySet() )
+                {
+                    if ( entry.getKey().startsWith( OSGI_INF ) )
+                    {
+                        File file = new File( outputDirectory, entry.getKey() );
+                        write( entry.getValue(), file );
+                        files.add( file );
+                    }
+                }
+
+                return files;
+            }
+        }
+    }
+
+    private static void write( Resource resource, File file )
+        throws Exception
+    {
+        if ( !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs() )
+        {
+            throw new IOException( "Could not create directory " + file.getParentFile() );
+        }
+        try (OutputStream os = new BufferedOutputStream( new FileOutputStream( file ) ))
+        {
+            resource.write( os );
+        }
+    }
+
+    public static String cleanupVersion( String version )
+    {
+        return Analyzer.cleanupVersion( version );
+    }
+}
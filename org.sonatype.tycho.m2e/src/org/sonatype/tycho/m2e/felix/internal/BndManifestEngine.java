@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.apache.maven.model.License;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates bundle manifest by driving bnd directly, without executing maven-bundle-plugin {@code manifest} goal.
+ * <p>
+ * Mojo execution requires plugin realm lookup, mojo configuration and full dependency resolution, all of which are
+ * already known to m2e at this point. The engine uses bnd library available in the running Eclipse instance and only
+ * supports plugin versions and instructions it can reproduce faithfully. Callers must fall back to regular mojo
+ * execution whenever {@link #canHandle(MavenProject, MojoExecution, Map)} returns {@code false} or
+ * {@link #generate(MavenProject, Map, File, File)} returns {@code null}.
+ * <p>
+ * The engine is disabled by default, use {@code -Dm2e.tycho.bnd.inprocess=true} to enable it. bnd 3.0 or newer, the
+ * version maven-bundle-plugin 3.0.0 uses, is required.
+ */
+class BndManifestEngine
+{
+    private static final Logger log = LoggerFactory.getLogger( BndManifestEngine.class );
+
+    static final String PROP_ENABLED = "m2e.tycho.bnd.inprocess";
+
+    private static final ArtifactVersion VERSION_3_0_0 = new DefaultArtifactVersion( "3.0.0" );
+
+    /**
+     * Instructions implemented by maven-bundle-plugin itself rather than by bnd.
+     */
+    private static final Set<String> UNSUPPORTED_INSTRUCTIONS = new HashSet<String>( Arrays.asList( //
+        "Embed-Dependency", "Embed-Transitive", "Embed-Directory", "Embed-StripGroup", "Embed-StripVersion", //
+        "Include-Resource", "Bundle-ClassPath", "_wab", "_wablib" ) );
+
+    /**
+     * Mojo parameters that change manifest generation in ways the engine does not replicate.
+     */
+    private static final Set<String> UNSUPPORTED_PARAMETERS = new HashSet<String>( Arrays.asList( //
+        "excludeDependencies", "niceManifest", "supportedProjectTypes" ) );
+
+    static final Set<String> CLASSPATH_SCOPES = new HashSet<String>( Arrays.asList( //
+        Artifact.SCOPE_COMPILE, Artifact.SCOPE_PROVIDED, Artifact.SCOPE_RUNTIME, Artifact.SCOPE_SYSTEM ) );
+
+    private static Boolean available;
+
+    public static boolean isEnabled()
+    {
+        return Boolean.getBoolean( PROP_ENABLED ) && isAvailable();
+    }
+
+    private static synchronized boolean isAvailable()
+    {
+        if ( available == null )
+        {
+            try
+            {
+                Class.forName( "aQute.bnd.osgi.Builder", false, BndManifestEngine.class.getClassLoader() );
+                available = Boolean.TRUE;
+            }
+            catch ( ClassNotFoundException | LinkageError e )
+            {
+                log.debug( "bnd library is not available, in-process manifest generation is disabled" );
+                available = Boolean.FALSE;
+            }
+        }
+        return available.booleanValue();
+    }
+
+    public static boolean canHandle( MavenProject mavenProject, MojoExecution execution,
+                                     Map<String, String> instructions )
+    {
+        if ( !"bundle".equals( mavenProject.getPackaging() ) && !"jar".equals( mavenProject.getPackaging() ) )
+        {
+            return false;
+        }
+
+        if ( VERSION_3_0_0.compareTo( new DefaultArtifactVersion( execution.getVersion() ) ) > 0 )
+        {
+            return false;
+        }
+
+        Xpp3Dom configuration = execution.getConfiguration();
+        if ( configuration != null )
+        {
+            for ( String parameter : UNSUPPORTED_PARAMETERS )
+            {
+                if ( configuration.getChild( parameter ) != null )
+                {
+                    return false;
+                }
+            }
+        }
+
+        if ( instructions != null )
+        {
+            for ( Map.Entry<String, String> instruction : instructions.entrySet() )
+            {
+                if ( UNSUPPORTED_INSTRUCTIONS.contains( instruction.getKey() ) )
+                {
+                    return false;
+                }
+                String value = instruction.getValue();
+                if ( value != null && ( value.contains( "{maven-" ) || value.contains( "{local-packages}" ) ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Generates bundle manifest and OSGI-INF resources.
+     *
+     * @return files written by the engine or {@code null} if the output could not be generated
+     */
+    public static List<File> generate( MavenProject mavenProject, Map<String, String> instructions, File manifestFile,
+                                       File outputDirectory )
+    {
+        Properties properties = getProperties( mavenProject, instructions, outputDirectory );
+
+        List<File> classpath = new ArrayList<File>();
+        classpath.add( outputDirectory );
+        for ( Artifact artifact : mavenProject.getArtifacts() )
+        {
+            File file = artifact.getFile();
+            if ( CLASSPATH_SCOPES.contains( artifact.getScope() ) && file != null && file.exists() )
+            {
+                classpath.add( file );
+            }
+        }
+
+        try
+        {
+            return BndManifestBuilder.build( mavenProject.getBasedir(), properties,
+                                             classpath.toArray( new File[classpath.size()] ), manifestFile,
+                                             outputDirectory );
+        }
+        catch ( Exception e )
+        {
+            log.debug( "Could not generate bundle manifest in-process for project {}", mavenProject.getId(), e );
+        }
+        catch ( LinkageError e )
+        {
+            log.debug( "Incompatible bnd library, could not generate bundle manifest in-process", e );
+        }
+
+        return null;
+    }
+
+    private static Properties getProperties( MavenProject mavenProject, Map<String, String> instructions,
+                                             File outputDirectory )
+    {
+        Properties properties = new Properties();
+
+        properties.putAll( mavenProject.getProperties() );
+        properties.setProperty( "project.groupId", mavenProject.getGroupId() );
+        properties.setProperty( "project.artifactId", mavenProject.getArtifactId() );
+        properties.setProperty( "project.version", mavenProject.getVersion() );
+        properties.setProperty( "project.baseDir", mavenProject.getBasedir().getAbsolutePath() );
+        properties.setProperty( "project.build.directory", mavenProject.getBuild().getDirectory() );
+        properties.setProperty( "project.build.outputdirectory", outputDirectory.getAbsolutePath() );
+
+        // defaults calculated by maven-bundle-plugin from project metadata
+        setProperty( properties, "Bundle-SymbolicName", getBundleSymbolicName( mavenProject ) );
+        setProperty( properties, "Bundle-Version", BndManifestBuilder.cleanupVersion( mavenProject.getVersion() ) );
+        setProperty( properties, "Bundle-Name", mavenProject.getName() );
+        setProperty( properties, "Bundle-Description", mavenProject.getDescription() );
+        if ( mavenProject.getOrganization() != null )
+        {
+            setProperty( properties, "Bundle-Vendor", mavenProject.getOrganization().getName() );
+            setProperty( properties, "Bundle-DocURL", mavenProject.getOrganization().getUrl() );
+        }
+        setProperty( properties, "Bundle-License", getLicenses( mavenProject ) );
+
+        if ( instructions != null )
+        {
+            for ( Map.Entry<String, String> instruction : instructions.entrySet() )
+            {
+                String key = instruction.getKey();
+                if ( key.startsWith( "_" ) )
+                {
+                    key = "-" + key.substring( 1 );
+                }
+                String value = instruction.getValue();
+                value = value != null ? value.replaceAll( "\\p{Blank}*[\r\n]\\p{Blank}*", "" ) : "";
+                properties.setProperty( key, value );
+            }
+        }
+
+        if ( !properties.containsKey( "Export-Package" ) && !properties.containsKey( "-exportcontents" )
+            && !properties.containsKey( "Private-Package" ) )
+        {
+            StringBuilder exported = new StringBuilder();
+            for ( String pkg : getLocalPackages( outputDirectory ) )
+            {
+                if ( !".".equals( pkg ) && !isPrivateByDefault( pkg ) )
+                {
+                    append( exported, pkg );
+                }
+            }
+            properties.setProperty( "Export-Package", exported.toString() );
+        }
+
+        if ( !properties.containsKey( "Private-Package" ) )
+        {
+            StringBuilder local = new StringBuilder();
+            for ( String pkg : getLocalPackages( outputDirectory ) )
+            {
+                append( local, pkg );
+            }
+            properties.setProperty( "Private-Package", local.toString() );
+        }
+
+        return properties;
+    }
+
+    /**
+     * Packages whose name contains {@code .impl} or {@code .internal} are not exported by default, same rule as
+     * maven-bundle-plugin uses.
+     */
+    static boolean isPrivateByDefault( String pkg )
+    {
+        return pkg.contains( ".impl" ) || pkg.contains( ".internal" );
+    }
+
+    private static void append( StringBuilder sb, String pkg )
+    {
+        if ( sb.length() > 0 )
+        {
+            sb.append( ',' );
+        }
+        sb.append( pkg );
+    }
+
+    private static void setProperty( Properties properties, String name, String value )
+    {
+        if ( value != null )
+        {
+            properties.setProperty( name, value );
+        }
+    }
+
+    private static String getLicenses( MavenProject mavenProject )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( License license : mavenProject.getLicenses() )
+        {
+            if ( license.getUrl() != null )
+            {
+                if ( sb.length() > 0 )
+                {
+                    sb.append( ", " );
+                }
+                sb.append( license.getUrl() );
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Same rules as maven-bundle-plugin DefaultMaven2OsgiConverter uses for projects that do not have artifact file
+     * yet.
+     */
+    static String getBundleSymbolicName( MavenProject mavenProject )
+    {
+        String groupId = mavenProject.getGroupId();
+        String artifactId = mavenProject.getArtifactId();
+
+        String lastSection = groupId.substring( groupId.lastIndexOf( '.' ) + 1 );
+        if ( artifactId.equals( lastSection ) )
+        {
+            return groupId;
+        }
+        if ( artifactId.equals( groupId ) || artifactId.startsWith( groupId + "." ) )
+        {
+            return artifactId;
+        }
+        if ( artifactId.startsWith( lastSection ) )
+        {
+            artifactId = artifactId.substring( lastSection.length() );
+            if ( !Character.isLetterOrDigit( artifactId.charAt( 0 ) ) )
+            {
+                artifactId = artifactId.substring( 1 );
+            }
+        }
+        return groupId + "." + artifactId;
+    }
+
+    static Set<String> getLocalPackages( File outputDirectory )
+    {
+        Set<String> packages = new TreeSet<String>();
+        collectLocalPackages( outputDirectory, "", packages );
+        return packages;
+    }
+
+    private static void collectLocalPackages( File directory, String pkg, Set<String> packages )
+    {
+        File[] members = directory.listFiles();
+        if ( members == null )
+        {
+            return;
+        }
+        for ( File member : members )
+        {
+            String name = member.getName();
+            if ( member.isDirectory() )
+            {
+                collectLocalPackages( member, pkg.isEmpty() ? name : pkg + "." + name, packages );
+            }
+            else if ( name.endsWith( ".class" ) )
+            {
+                packages.add( pkg.isEmpty() ? "." : pkg );
+            }
+        }
+    }
+}
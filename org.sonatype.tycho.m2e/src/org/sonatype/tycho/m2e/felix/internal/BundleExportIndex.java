@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.osgi.util.ManifestElement;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Workspace-wide index of packages exported and imported by generated bundle manifests.
+ * <p>
+ * Used to propagate manifest regeneration downstream. When regeneration changes packages exported by a project, i.e.
+ * adds or removes a package or changes its version, only projects that import any of the changed packages need to be
+ * regenerated.
+ */
+class BundleExportIndex
+{
+    private static final Logger log = LoggerFactory.getLogger( BundleExportIndex.class );
+
+    private static final BundleExportIndex INSTANCE = new BundleExportIndex();
+
+    private static class Bundle
+    {
+        /**
+         * exported package -> version
+         */
+        final Map<String, String> exports;
+
+        final Set<String> imports;
+
+        Bundle( Map<String, String> exports, Set<String> imports )
+        {
+            this.exports = exports;
+            this.imports = imports;
+        }
+    }
+
+    private static final Bundle EMPTY =
+        new Bundle( Collections.<String, String> emptyMap(), Collections.<String> emptySet() );
+
+    private final Map<IProject, Bundle> bundles = new ConcurrentHashMap<IProject, Bundle>();
+
+    private BundleExportIndex()
+    {
+    }
+
+    public static BundleExportIndex getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Indexes the manifest unless the project is already indexed.
+     */
+    public void indexIfAbsent( IProject project, File manifestFile )
+    {
+        if ( !bundles.containsKey( project ) )
+        {
+            bundles.put( project, read( manifestFile ) );
+        }
+    }
+
+    /**
+     * Indexes manifest content unless the project is already indexed, {@code null} content means there is no manifest.
+     */
+    public void indexIfAbsent( IProject project, byte[] manifestContent )
+    {
+        if ( !bundles.containsKey( project ) )
+        {
+            Bundle bundle =
+                manifestContent != null ? read( new ByteArrayInputStream( manifestContent ), project ) : EMPTY;
+            bundles.put( project, bundle );
+        }
+    }
+
+    /**
+     * Re-indexes regenerated manifest of the project and returns other indexed projects that import any of the
+     * packages whose export changed. Returns empty set if the project was not indexed before.
+     */
+    public Set<IProject> update( IProject project, File manifestFile )
+    {
+        Bundle bundle = read( manifestFile );
+        Bundle previous = bundles.put( project, bundle );
+        if ( previous == null )
+        {
+            return Collections.emptySet();
+        }
+
+        Set<String> changed = new HashSet<String>();
+        for ( Map.Entry<String, String> export : bundle.exports.entrySet() )
+        {
+            if ( !Objects.equals( export.getValue(), previous.exports.get( export.getKey() ) ) )
+            {
+                changed.add( export.getKey() );
+            }
+        }
+        for ( String export : previous.exports.keySet() )
+        {
+            if ( !bundle.exports.containsKey( export ) )
+            {
+                changed.add( export );
+            }
+        }
+        if ( changed.isEmpty() )
+        {
+            return Collections.emptySet();
+        }
+
+        Set<IProject> dependents = new LinkedHashSet<IProject>();
+        for ( Map.Entry<IProject, Bundle> entry : bundles.entrySet() )
+        {
+            if ( !project.equals( entry.getKey() ) && !Collections.disjoint( entry.getValue().imports, changed ) )
+            {
+                dependents.add( entry.getKey() );
+            }
+        }
+        log.debug( "Exports {} of project {} changed, affected projects {}", changed, project, dependents );
+        return dependents;
+    }
+
+    /**
+     * Returns packages exported by the indexed project and their versions in stable order, or {@code null} if the
+     * project is not indexed.
+     */
+    public String getExports( IProject project )
+    {
+        Bundle bundle = bundles.get( project );
+        return bundle != null ? new TreeMap<String, String>( bundle.exports ).toString() : null;
+    }
+
+    public void remove( IProject project )
+    {
+        bundles.remove( project );
+    }
+
+    private static Bundle read( File manifestFile )
+    {
+        if ( !manifestFile.isFile() )
+        {
+            return EMPTY;
+        }
+        try (InputStream is = new BufferedInputStream( new FileInputStream( manifestFile ) ))
+        {
+            return read( is, manifestFile );
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Could not read bundle manifest {}", manifestFile, e );
+            return EMPTY;
+        }
+    }
+
+    private static Bundle read( InputStream is, Object source )
+    {
+        Map<String, String> exports = new HashMap<String, String>();
+        Set<String> imports = new HashSet<String>();
+        try
+        {
+            Attributes attributes = new Manifest( is ).getMainAttributes();
+            for ( ManifestElement element : parse( Constants.EXPORT_PACKAGE, attributes ) )
+            {
+                String version = getVersion( element );
+                for ( String packageName : element.getValueComponents() )
+                {
+                    exports.put( packageName, version );
+                }
+            }
+            for ( ManifestElement element : parse( Constants.IMPORT_PACKAGE, attributes ) )
+            {
+                Collections.addAll( imports, element.getValueComponents() );
+            }
+        }
+        catch ( IOException | BundleException e )
+        {
+            log.debug( "Could not read bundle manifest of {}", source, e );
+        }
+        return new Bundle( exports, imports );
+    }
+
+    private static ManifestElement[] parse( String header, Attributes attributes )
+        throws BundleException
+    {
+        ManifestElement[] elements = ManifestElement.parseHeader( header, attributes.getValue( header ) );
+        return elements != null ? elements : new ManifestElement[0];
+    }
+
+    private static String getVersion( ManifestElement element )
+    {
+        String version = element.getAttribute( Constants.VERSION_ATTRIBUTE );
+        if ( version == null )
+        {
+            version = element.getAttribute( Constants.PACKAGE_SPECIFICATION_VERSION );
+        }
+        try
+        {
+            return Version.parseVersion( version ).toString();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return version;
+        }
+    }
+}
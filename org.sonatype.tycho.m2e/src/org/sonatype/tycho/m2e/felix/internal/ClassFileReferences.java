@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Package-level view of a single class file, i.e. package the class belongs to and packages it references.
+ * <p>
+ * Only the constant pool is read. Referenced packages are collected from class constants and from type descriptors
+ * and signatures found in utf8 constants, which is a superset of what bnd considers when calculating Import-Package.
+ * The class is considered a Declarative Services component if its constant pool references component annotation type.
+ * Classes that reference OSGi or bnd annotation types, including package-info classes, are flagged as annotated,
+ * their content may affect generated headers beyond what package-level references tell.
+ */
+class ClassFileReferences
+{
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * Descriptors of OSGi standard and legacy bnd component annotations processed by bnd.
+     */
+    private static final List<String> COMPONENT_ANNOTATIONS =
+        Arrays.asList( "Lorg/osgi/service/component/annotations/Component;",
+                       "LaQute/bnd/annotation/component/Component;" );
+
+    /**
+     * Descriptor prefixes of annotation types bnd reads, e.g. {@code @Version} or {@code @ProviderType}.
+     */
+    private static final List<String> ANNOTATION_PREFIXES =
+        Arrays.asList( "Lorg/osgi/annotation/", "LaQute/bnd/annotation/", "Lorg/osgi/service/component/annotations/" );
+
+    private final String packageName;
+
+    private final Set<String> referencedPackages;
+
+    private final boolean component;
+
+    private final boolean annotated;
+
+    private final int majorVersion;
+
+    private ClassFileReferences( String packageName, Set<String> referencedPackages, boolean component,
+                                 boolean annotated, int majorVersion )
+    {
+        this.packageName = packageName;
+        this.referencedPackages = referencedPackages;
+        this.component = component;
+        this.annotated = annotated;
+        this.majorVersion = majorVersion;
+    }
+
+    public String getPackageName()
+    {
+        return packageName;
+    }
+
+    /**
+     * Packages referenced by the class, excluding the class own package and {@code java.*} packages.
+     */
+    public Set<String> getReferencedPackages()
+    {
+        return referencedPackages;
+    }
+
+    /**
+     * {@code true} if the class may be annotated with a Declarative Services component annotation.
+     */
+    public boolean isComponent()
+    {
+        return component;
+    }
+
+    /**
+     * {@code true} if the class is a package-info class or may be annotated with OSGi or bnd annotations.
+     */
+    public boolean isAnnotated()
+    {
+        return annotated;
+    }
+
+    /**
+     * Class file major version, bnd derives required execution environment from it.
+     */
+    public int getMajorVersion()
+    {
+        return majorVersion;
+    }
+
+    public static ClassFileReferences read( File file )
+        throws IOException
+    {
+        try (DataInputStream is = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+        {
+            if ( is.readInt() != MAGIC )
+            {
+                throw new IOException( "Not a class file " + file );
+            }
+            is.readUnsignedShort(); // minor
+            int major = is.readUnsignedShort();
+
+            int count = is.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count]; // constant pool index -> class name utf8 index
+            for ( int i = 1; i < count; i++ )
+            {
+                int tag = is.readUnsignedByte();
+                switch ( tag )
+                {
+                    case 1: // Utf8
+                        utf8[i] = is.readUTF();
+                        break;
+                    case 7: // Class
+                        classes[i] = is.readUnsignedShort();
+                        break;
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        is.readUnsignedShort();
+                        break;
+                    case 15: // MethodHandle
+                        is.readUnsignedByte();
+                        is.readUnsignedShort();
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        is.readInt();
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        is.readLong();
+                        i++; // takes two constant pool entries
+                        break;
+                    default:
+                        throw new IOException( "Unsupported constant pool tag " + tag + " in " + file );
+                }
+            }
+
+            is.readUnsignedShort(); // access flags
+            String className = utf8[classes[is.readUnsignedShort()]];
+            String packageName = getPackageName( className );
+
+            Set<String> packages = new HashSet<String>();
+            for ( int i = 1; i < count; i++ )
+            {
+                String name = classes[i] > 0 ? utf8[classes[i]] : null;
+                if ( name != null )
+                {
+                    if ( name.startsWith( "[" ) )
+                    {
+                        addDescriptorPackages( name, packages );
+                    }
+                    else
+                    {
+                        addPackage( getPackageName( name ), packages );
+                    }
+                }
+            }
+            boolean component = false;
+            boolean annotated = className.endsWith( "/package-info" ) || "package-info".equals( className );
+            for ( String value : utf8 )
+            {
+                if ( value != null && value.indexOf( ';' ) > 0 )
+                {
+                    addDescriptorPackages( value, packages );
+                    component = component || COMPONENT_ANNOTATIONS.contains( value );
+                    annotated = annotated || isAnnotation( value );
+                }
+            }
+
+            packages.remove( packageName );
+
+            return new ClassFileReferences( packageName, Collections.unmodifiableSet( packages ), component, annotated,
+                                            major );
+        }
+        catch ( ArrayIndexOutOfBoundsException | NullPointerException e )
+        {
+            throw new IOException( "Malformed class file " + file, e );
+        }
+    }
+
+    private static boolean isAnnotation( String descriptor )
+    {
+        for ( String prefix : ANNOTATION_PREFIXES )
+        {
+            if ( descriptor.startsWith( prefix ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addDescriptorPackages( String descriptor, Set<String> packages )
+    {
+        int idx = 0;
+        while ( ( idx = descriptor.indexOf( 'L', idx ) ) >= 0 )
+        {
+            int end = descriptor.indexOf( ';', idx );
+            if ( end < 0 )
+            {
+                return;
+            }
+            String name = descriptor.substring( idx + 1, end );
+            int generic = name.indexOf( '<' );
+            if ( generic >= 0 )
+            {
+                // nested generic signature, continue right after the outer type name
+                name = name.substring( 0, generic );
+                end = idx + 1 + generic;
+            }
+            if ( isInternalName( name ) )
+            {
+                addPackage( getPackageName( name ), packages );
+            }
+            idx = end + 1;
+        }
+    }
+
+    private static boolean isInternalName( String name )
+    {
+        if ( name.indexOf( '/' ) < 0 )
+        {
+            return false;
+        }
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+            if ( c != '/' && c != '$' && !Character.isJavaIdentifierPart( c ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addPackage( String pkg, Set<String> packages )
+    {
+        if ( !".".equals( pkg ) && !pkg.startsWith( "java." ) )
+        {
+            packages.add( pkg );
+        }
+    }
+
+    private static String getPackageName( String internalName )
+    {
+        int idx = internalName.lastIndexOf( '/' );
+        return idx > 0 ? internalName.substring( 0, idx ).replace( '/', '.' ) : ".";
+    }
+}
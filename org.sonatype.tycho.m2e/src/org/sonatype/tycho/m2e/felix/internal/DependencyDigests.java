@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.core.resources.IProject;
+
+/**
+ * Digests of resolved project dependencies, used to tell dependency change events that actually change the set of
+ * resolved artifacts from events fired for re-resolutions that produce the same result.
+ * <p>
+ * The digest covers id, scope, file, file size and file timestamp of each resolved artifact.
+ */
+class DependencyDigests
+{
+    private static final DependencyDigests INSTANCE = new DependencyDigests();
+
+    private final Map<IProject, String> digests = new ConcurrentHashMap<IProject, String>();
+
+    private DependencyDigests()
+    {
+    }
+
+    public static DependencyDigests getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Records digest of resolved dependencies of the project.
+     *
+     * @return {@code true} if the digest differs from the previously recorded digest or there was no previous digest
+     */
+    public boolean update( IProject project, MavenProject mavenProject )
+    {
+        String digest = compute( mavenProject );
+        return !digest.equals( digests.put( project, digest ) );
+    }
+
+    public void remove( IProject project )
+    {
+        digests.remove( project );
+    }
+
+    static String compute( MavenProject mavenProject )
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+
+        // artifact set iteration order is not guaranteed to be stable between resolutions
+        Map<String, Artifact> artifacts = new TreeMap<String, Artifact>();
+        for ( Artifact artifact : mavenProject.getArtifacts() )
+        {
+            artifacts.put( artifact.getId(), artifact );
+        }
+        for ( Artifact artifact : artifacts.values() )
+        {
+            ManifestFingerprints.update( digest, artifact.getId() );
+            ManifestFingerprints.update( digest, artifact.getScope() );
+            File file = artifact.getFile();
+            if ( file != null )
+            {
+                ManifestFingerprints.update( digest, file.getAbsolutePath() + ":" + file.length() + ":"
+                    + file.lastModified() );
+            }
+        }
+
+        return ManifestFingerprints.toHex( digest.digest() );
+    }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.m2e.core.project.IMavenProjectFacade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filesystem state of resources generated by maven-bundle-plugin, i.e. bundle manifest and contents of
+ * {@code OSGI-INF} and {@code OSGI-OPT} output folders.
+ * <p>
+ * Snapshots taken before and after manifest generation are compared to determine exactly which files and folders were
+ * created, changed or deleted, so only these resources need to be refreshed in the workspace. Contents of the manifest
+ * and of files in {@code OSGI-INF} are kept with the snapshot, so files that were rewritten with equivalent content can
+ * be restored, see {@link #restoreUnchanged(GeneratedResources)}.
+ */
+class GeneratedResources
+{
+    private static final Logger log = LoggerFactory.getLogger( GeneratedResources.class );
+
+    private static final String[] GENERATED_FOLDERS = { "OSGI-INF", "OSGI-OPT" };
+
+    /**
+     * Folder with DS component descriptors and metatype resources, small enough to keep in memory.
+     */
+    private static final String CONTENT_FOLDER = "OSGI-INF";
+
+    /**
+     * Manifest headers that change with every generation without changing the meaning of the manifest.
+     */
+    private static final Attributes.Name[] VOLATILE_HEADERS =
+        { new Attributes.Name( "Bnd-LastModified" ), new Attributes.Name( "Tool" ) };
+
+    private static class Stamp
+    {
+        final boolean directory;
+
+        final FileTime lastModified;
+
+        final long size;
+
+        Stamp( BasicFileAttributes attributes )
+        {
+            this.directory = attributes.isDirectory();
+            this.lastModified = directory ? null : attributes.lastModifiedTime();
+            this.size = directory ? 0L : attributes.size();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof Stamp ) )
+            {
+                return false;
+            }
+            Stamp other = (Stamp) obj;
+            return directory == other.directory && size == other.size
+                && Objects.equals( lastModified, other.lastModified );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash( directory, lastModified, size );
+        }
+    }
+
+    private final Path manifest;
+
+    private final Path contentFolder;
+
+    private final Map<Path, Stamp> stamps = new HashMap<Path, Stamp>();
+
+    private final Map<Path, byte[]> contents = new HashMap<Path, byte[]>();
+
+    private GeneratedResources( Path manifest, Path contentFolder )
+    {
+        this.manifest = manifest;
+        this.contentFolder = contentFolder;
+    }
+
+    public static GeneratedResources snapshot( File manifestFile, File outputDirectory )
+    {
+        GeneratedResources snapshot =
+            new GeneratedResources( manifestFile.toPath(), outputDirectory.toPath().resolve( CONTENT_FOLDER ) );
+        snapshot.add( snapshot.manifest );
+        for ( String folder : GENERATED_FOLDERS )
+        {
+            Path path = outputDirectory.toPath().resolve( folder );
+            if ( Files.isDirectory( path ) )
+            {
+                try (Stream<Path> members = Files.walk( path ))
+                {
+                    members.forEach( snapshot::add );
+                }
+                catch ( IOException | RuntimeException e )
+                {
+                    // could not walk the folder, make sure the folder is refreshed
+                    snapshot.stamps.remove( path );
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void add( Path path )
+    {
+        try
+        {
+            Stamp stamp = new Stamp( Files.readAttributes( path, BasicFileAttributes.class ) );
+            stamps.put( path, stamp );
+            if ( !stamp.directory && ( path.equals( manifest ) || path.startsWith( contentFolder ) ) )
+            {
+                contents.put( path, Files.readAllBytes( path ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            // does not exist
+            stamps.remove( path );
+            contents.remove( path );
+        }
+    }
+
+    /**
+     * Returns SHA-1 hashes of the manifest and of files in {@code OSGI-INF}, keyed by absolute path.
+     */
+    public Map<String, String> getContentHashes()
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        Map<String, String> hashes = new TreeMap<String, String>();
+        for ( Map.Entry<Path, byte[]> entry : contents.entrySet() )
+        {
+            hashes.put( entry.getKey().toString(), ManifestFingerprints.toHex( digest.digest( entry.getValue() ) ) );
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns content of the manifest at the time the snapshot was taken or {@code null} if there was no manifest.
+     */
+    public byte[] getManifestContent()
+    {
+        return contents.get( manifest );
+    }
+
+    /**
+     * Restores original content and timestamp of files that were rewritten since this snapshot was taken, but whose new
+     * content is equivalent to the original. The manifest is compared semantically, i.e. ignoring header order, line
+     * wrapping and {@code Bnd-LastModified} and {@code Tool} headers, other files are compared byte by byte. Restored
+     * files are updated in the {@code after} snapshot, so they are not reported by
+     * {@link #getChanges(GeneratedResources)}
+     * and are not seen as changed by PDE.
+     */
+    public void restoreUnchanged( GeneratedResources after )
+    {
+        for ( Map.Entry<Path, byte[]> entry : contents.entrySet() )
+        {
+            Path path = entry.getKey();
+            Stamp stamp = stamps.get( path );
+            byte[] content = after.contents.get( path );
+            if ( content == null || stamp.equals( after.stamps.get( path ) )
+                || !isEquivalent( path, entry.getValue(), content ) )
+            {
+                continue;
+            }
+            try
+            {
+                Files.write( path, entry.getValue() );
+                Files.setLastModifiedTime( path, stamp.lastModified );
+                log.debug( "Restored unchanged generated resource {}", path );
+            }
+            catch ( IOException e )
+            {
+                log.debug( "Could not restore generated resource {}", path, e );
+            }
+            after.add( path );
+        }
+    }
+
+    private boolean isEquivalent( Path path, byte[] original, byte[] content )
+    {
+        if ( Arrays.equals( original, content ) )
+        {
+            return true;
+        }
+        if ( !path.equals( manifest ) )
+        {
+            return false;
+        }
+        try
+        {
+            Manifest originalManifest = new Manifest( new ByteArrayInputStream( original ) );
+            Manifest newManifest = new Manifest( new ByteArrayInputStream( content ) );
+            for ( Attributes.Name header : VOLATILE_HEADERS )
+            {
+                originalManifest.getMainAttributes().remove( header );
+                newManifest.getMainAttributes().remove( header );
+            }
+            // Manifest.equals compares main attributes and entries as maps, i.e. order insensitive
+            return originalManifest.equals( newManifest );
+        }
+        catch ( IOException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns files and folders that were created, changed or deleted since this snapshot was taken. Paths are sorted,
+     * so parent folders come before their members.
+     */
+    public SortedSet<Path> getChanges( GeneratedResources after )
+    {
+        SortedSet<Path> changes = new TreeSet<Path>();
+        for ( Map.Entry<Path, Stamp> entry : stamps.entrySet() )
+        {
+            if ( !entry.getValue().equals( after.stamps.get( entry.getKey() ) ) )
+            {
+                changes.add( entry.getKey() );
+            }
+        }
+        for ( Path path : after.stamps.keySet() )
+        {
+            if ( !stamps.containsKey( path ) )
+            {
+                changes.add( path );
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Refreshes changed resources with {@link IResource#DEPTH_ZERO} in a single workspace operation.
+     */
+    public static void refresh( IMavenProjectFacade facade, SortedSet<Path> changes, IProgressMonitor monitor )
+        throws CoreException
+    {
+        if ( changes.isEmpty() )
+        {
+            return;
+        }
+
+        IProject project = facade.getProject();
+        IWorkspace workspace = project.getWorkspace();
+        workspace.run( m -> {
+            SubMonitor progress = SubMonitor.convert( m, changes.size() );
+            for ( Path path : changes )
+            {
+                IPath relativePath = facade.getProjectRelativePath( path.toString() );
+                if ( relativePath == null )
+                {
+                    progress.worked( 1 );
+                    continue; // outside of the project
+                }
+                boolean folder = Files.isDirectory( path ) || project.getFolder( relativePath ).exists();
+                IResource resource = folder ? project.getFolder( relativePath ) : project.getFile( relativePath );
+                resource.refreshLocal( IResource.DEPTH_ZERO, progress.split( 1 ) );
+            }
+        }, project, IWorkspace.AVOID_UPDATE, monitor );
+    }
+}
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.m2e.core.MavenPlugin;
+import org.eclipse.m2e.core.project.IMavenProjectFacade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.tycho.m2e.internal.M2ETychoActivator;
+import org.sonatype.tycho.m2e.internal.PDEProjectHelper;
+
+/**
+ * Persistent fingerprints of bundle manifest generation inputs, one per project and mojo execution.
+ * <p>
+ * Fingerprint covers effective mojo configuration and instructions, contents of included bnd files, resolved
+ * dependencies, exports of workspace dependencies and package-level references of class files in the output folder,
+ * see {@link PackageReferenceCache}. Fingerprints are stored in plugin state location, so they survive workbench
+ * restarts, together with content hashes of generated outputs and the pending forced regeneration flag of the
+ * project. Outputs that were changed or deleted while the workbench was not running are detected by comparing the
+ * hashes.
+ * <p>
+ * State files written by a different version of this class or that can not be read are discarded, which results in
+ * manifest regeneration.
+ */
+class ManifestFingerprints
+{
+    private static final Logger log = LoggerFactory.getLogger( ManifestFingerprints.class );
+
+    private static final String FINGERPRINTS_DIR = "fingerprints";
+
+    /**
+     * Bump when format of the state files or meaning of the fingerprints changes.
+     */
+    private static final String STATE_VERSION = "4";
+
+    private static final String KEY_VERSION = "@version";
+
+    private static final String KEY_FORCE = "@force";
+
+    /**
+     * Separates execution key from output path in output hash keys.
+     */
+    private static final String OUTPUT_SEPARATOR = "|";
+
+    private static final ManifestFingerprints INSTANCE = new ManifestFingerprints();
+
+    private final Map<String, Properties> fingerprints = new HashMap<String, Properties>();
+
+    private ManifestFingerprints()
+    {
+    }
+
+    public static ManifestFingerprints getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public static String getKey( MojoExecution execution )
+    {
+        return execution.getExecutionId() + ":" + execution.getGoal();
+    }
+
+    public static String compute( IProject project, MavenProject mavenProject, MojoExecution execution,
+                                  Map<String, String> instructions, File outputDirectory )
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+
+        update( digest, mavenProject.getId() );
+        update( digest, mavenProject.getName() );
+        update( digest, mavenProject.getDescription() );
+        update( digest, execution.getVersion() );
+        update( digest, String.valueOf( execution.getConfiguration() ) );
+
+        if ( instructions != null )
+        {
+            for ( Map.Entry<String, String> instruction : new TreeMap<String, String>( instructions ).entrySet() )
+            {
+                update( digest, instruction.getKey() );
+                update( digest, instruction.getValue() );
+            }
+        }
+
+        for ( String path : MavenBundlePluginConfigurator.getIncludeBndFilePaths( instructions ) )
+        {
+            update( digest, path );
+            update( digest, new File( mavenProject.getBasedir(), path ) );
+        }
+
+        for ( Artifact artifact : mavenProject.getArtifacts() )
+        {
+            if ( BndManifestEngine.CLASSPATH_SCOPES.contains( artifact.getScope() ) )
+            {
+                update( digest, artifact.getId() );
+                File file = artifact.getFile();
+                if ( file != null && file.isDirectory() )
+                {
+                    // workspace dependency, the output folder does not change when its content does
+                    update( digest, file.getAbsolutePath() );
+                    update( digest, getWorkspaceExports( artifact ) );
+                    update( digest, new File( file, "META-INF/MANIFEST.MF" ) );
+                }
+                else if ( file != null )
+                {
+                    update( digest, file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() );
+                }
+            }
+        }
+
+        // package-level references of class files from the package reference cache, not class file content, only
+        // annotated classes are hashed
+        PackageReferenceCache.getInstance().digest( project, outputDirectory, digest );
+
+        return toHex( digest.digest() );
+    }
+
+    /**
+     * Returns exports of the workspace project that produced the artifact, as indexed from its generated manifest.
+     * Projects that were not indexed yet in this session, e.g. right after workbench restart or reopening of the
+     * project, are indexed from their bundle manifest on disk, so the fingerprint does not depend on the order in which
+     * projects are built after restart.
+     */
+    private static String getWorkspaceExports( Artifact artifact )
+    {
+        IMavenProjectFacade facade =
+            MavenPlugin.getMavenProjectRegistry().getProject( artifact.getGroupId(), artifact.getArtifactId(),
+                                                              artifact.getBaseVersion() );
+        if ( facade == null )
+        {
+            return null;
+        }
+        IProject project = facade.getProject();
+        BundleExportIndex exportIndex = BundleExportIndex.getInstance();
+        String exports = exportIndex.getExports( project );
+        if ( exports == null )
+        {
+            try
+            {
+                IFile manifest = PDEProjectHelper.getBundleManifest( project );
+                IPath location = manifest != null ? manifest.getLocation() : null;
+                if ( location != null )
+                {
+                    exportIndex.indexIfAbsent( project, location.toFile() );
+                    exports = exportIndex.getExports( project );
+                }
+            }
+            catch ( CoreException e )
+            {
+                log.debug( "Could not locate bundle manifest of project {}", project.getName(), e );
+            }
+        }
+        return exports;
+    }
+
+    static void update( MessageDigest digest, File file )
+    {
+        try
+        {
+            digest.update( Files.readAllBytes( file.toPath() ) );
+            digest.update( (byte) 0 );
+        }
+        catch ( IOException e )
+        {
+            update( digest, "<missing>" );
+        }
+    }
+
+    static void update( MessageDigest digest, String value )
+    {
+        if ( value != null )
+        {
+            digest.update( value.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        digest.update( (byte) 0 );
+    }
+
+    static String toHex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns {@code true} if the fingerprint matches the stored fingerprint and hashes of current outputs match hashes
+     * of outputs stored together with the fingerprint.
+     */
+    public synchronized boolean matches( IProject project, String key, String fingerprint, Map<String, String> outputs )
+    {
+        Properties properties = getFingerprints( project );
+        return fingerprint.equals( properties.getProperty( key ) ) && outputs.equals( getOutputs( properties, key ) );
+    }
+
+    public synchronized void store( IProject project, String key, String fingerprint, Map<String, String> outputs )
+    {
+        Properties properties = getFingerprints( project );
+        boolean changed = !fingerprint.equals( properties.put( key, fingerprint ) );
+        if ( !outputs.equals( getOutputs( properties, key ) ) )
+        {
+            removeOutputs( properties, key );
+            for ( Map.Entry<String, String> output : outputs.entrySet() )
+            {
+                properties.put( key + OUTPUT_SEPARATOR + output.getKey(), output.getValue() );
+            }
+            changed = true;
+        }
+        if ( changed )
+        {
+            save( project, properties );
+        }
+    }
+
+    public synchronized void remove( IProject project, String key )
+    {
+        Properties properties = getFingerprints( project );
+        boolean changed = properties.remove( key ) != null;
+        changed = removeOutputs( properties, key ) || changed;
+        if ( changed )
+        {
+            save( project, properties );
+        }
+    }
+
+    /**
+     * Pending forced regeneration flag, persisted so forced regeneration is not lost if the workbench is shut down
+     * before the project is built.
+     */
+    public synchronized boolean isForced( IProject project )
+    {
+        return Boolean.parseBoolean( getFingerprints( project ).getProperty( KEY_FORCE ) );
+    }
+
+    public synchronized void setForced( IProject project, boolean force )
+    {
+        Properties properties = getFingerprints( project );
+        if ( force != Boolean.parseBoolean( properties.getProperty( KEY_FORCE ) ) )
+        {
+            if ( force )
+            {
+                properties.put( KEY_FORCE, "true" );
+            }
+            else
+            {
+                properties.remove( KEY_FORCE );
+            }
+            save( project, properties );
+        }
+    }
+
+    private static Map<String, String> getOutputs( Properties properties, String key )
+    {
+        String prefix = key + OUTPUT_SEPARATOR;
+        Map<String, String> outputs = new TreeMap<String, String>();
+        for ( String name : properties.stringPropertyNames() )
+        {
+            if ( name.startsWith( prefix ) )
+            {
+                outputs.put( name.substring( prefix.length() ), properties.getProperty( name ) );
+            }
+        }
+        return outputs;
+    }
+
+    private static boolean removeOutputs( Properties properties, String key )
+    {
+        String prefix = key + OUTPUT_SEPARATOR;
+        return properties.keySet().removeIf( name -> ( (String) name ).startsWith( prefix ) );
+    }
+
+    private Properties getFingerprints( IProject project )
+    {
+        Properties properties = fingerprints.get( project.getName() );
+        if ( properties == null )
+        {
+            properties = new Properties();
+            File file = getFile( project );
+            if ( file != null && file.isFile() )
+            {
+                try (InputStream is = new BufferedInputStream( new FileInputStream( file ) ))
+                {
+                    properties.load( is );
+                }
+                catch ( IOException | IllegalArgumentException e )
+                {
+                    // corrupted file, start over
+                    log.debug( "Could not read bundle manifest fingerprints {}", file, e );
+                    properties.clear();
+                }
+                if ( !STATE_VERSION.equals( properties.getProperty( KEY_VERSION ) ) )
+                {
+                    log.debug( "Discarding bundle manifest fingerprints {} of different version", file );
+                    properties.clear();
+                }
+            }
+            properties.put( KEY_VERSION, STATE_VERSION );
+            fingerprints.put( project.getName(), properties );
+        }
+        return properties;
+    }
+
+    private void save( IProject project, Properties properties )
+    {
+        File file = getFile( project );
+        if ( file == null )
+        {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        // write to a temporary file first, so a crash does not leave partially written state behind
+        File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        try
+        {
+            try (OutputStream os = new BufferedOutputStream( new FileOutputStream( tmp ) ))
+            {
+                properties.store( os, null );
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Could not write bundle manifest fingerprints {}", file, e );
+        }
+    }
+
+    private static File getFile( IProject project )
+    {
+        M2ETychoActivator activator = M2ETychoActivator.getDefault();
+        if ( activator == null )
+        {
+            return null;
+        }
+        return activator.getStateLocation().append( FINGERPRINTS_DIR ).append( project.getName() + ".properties" )
+            .toFile();
+    }
+
+}
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces manifest regeneration requests.
+ * <p>
+ * A single pom.xml change, for example parent version bump, results in a burst of project change events, one per
+ * affected project. Instead of waiting for each project to be built, dirty projects are collected until no new requests
+ * arrive for {@link #COALESCE_DELAY} milliseconds and are then built in one pass, in workspace build order. Projects
+ * that were built by other means in the meantime are skipped.
+ * <p>
+ * When {@link #PROP_THREADS} system property is set to a value greater than one, manifests are regenerated outside of
+ * workspace build on a bounded pool of worker jobs instead. Each worker only holds the scheduling rule of its project,
+ * so projects that do not depend on each other are regenerated concurrently. Projects are processed in levels of the
+ * workspace dependency graph, a project is only regenerated after all pending projects it depends on.
+ * <p>
+ * Only regeneration scheduled here runs concurrently. Manifests generated during workspace builds, including full
+ * builds, are generated one project at a time, the m2e project builder runs under the workspace build rule, which
+ * this plugin does not control.
+ */
+public class ManifestRegenerationScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger( ManifestRegenerationScheduler.class );
+
+    private static final ManifestRegenerationScheduler INSTANCE = new ManifestRegenerationScheduler();
+
+    /**
+     * Delay to coalesce bursts of regeneration requests, restarted by every new request.
+     */
+    private static final long COALESCE_DELAY = 500L;
+
+    /**
+     * Maximum number of projects regenerated concurrently, defaults to 1, i.e. serial regeneration by project builds.
+     */
+    public static final String PROP_THREADS = "m2e.tycho.manifest.threads";
+
+    private final Set<IProject> pending = new LinkedHashSet<IProject>();
+
+    private final RegenerationJob job = new RegenerationJob();
+
+    private ManifestRegenerationScheduler()
+    {
+    }
+
+    public static ManifestRegenerationScheduler getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Forces manifest regeneration of the projects during their next build and schedules the build.
+     */
+    public void schedule( Collection<IProject> projects )
+        throws CoreException
+    {
+        for ( IProject project : projects )
+        {
+            MavenBundlePluginConfigurator.forceManifestRegeneration( project );
+        }
+        synchronized ( pending )
+        {
+            pending.addAll( projects );
+        }
+        // rescheduling a sleeping job restarts the delay
+        job.schedule( COALESCE_DELAY );
+    }
+
+    /**
+     * Returns projects waiting for manifest regeneration, in the order the requests were received.
+     */
+    public List<IProject> getPendingProjects()
+    {
+        synchronized ( pending )
+        {
+            return Collections.unmodifiableList( new ArrayList<IProject>( pending ) );
+        }
+    }
+
+    public void dispose()
+    {
+        job.cancel();
+        synchronized ( pending )
+        {
+            pending.clear();
+        }
+    }
+
+    private IProject[] takePending()
+    {
+        synchronized ( pending )
+        {
+            IProject[] projects = pending.toArray( new IProject[pending.size()] );
+            pending.clear();
+            return projects;
+        }
+    }
+
+    static int getThreads()
+    {
+        try
+        {
+            return Math.max( 1, Integer.parseInt( System.getProperty( PROP_THREADS, "1" ) ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Groups projects in levels, projects in each level only depend on pending projects in the previous levels.
+     * Projects must be in workspace build order.
+     */
+    static List<List<IProject>> getLevels( IProject[] ordered )
+        throws CoreException
+    {
+        Map<IProject, Integer> levels = new HashMap<IProject, Integer>();
+        List<List<IProject>> result = new ArrayList<List<IProject>>();
+        for ( IProject project : ordered )
+        {
+            int level = 0;
+            if ( project.isAccessible() )
+            {
+                for ( IProject referenced : project.getReferencedProjects() )
+                {
+                    Integer referencedLevel = levels.get( referenced );
+                    if ( referencedLevel != null )
+                    {
+                        level = Math.max( level, referencedLevel + 1 );
+                    }
+                }
+            }
+            levels.put( project, level );
+            if ( result.size() <= level )
+            {
+                result.add( new ArrayList<IProject>() );
+            }
+            result.get( level ).add( project );
+        }
+        return result;
+    }
+
+    private class RegenerationJob
+        extends Job
+    {
+        RegenerationJob()
+        {
+            // no rule, project builds and concurrent regeneration jobs acquire their own
+            super( "Updating bundle manifests" );
+        }
+
+        @Override
+        protected IStatus run( IProgressMonitor monitor )
+        {
+            try
+            {
+                regenerate( monitor );
+            }
+            catch ( CoreException e )
+            {
+                return e.getStatus();
+            }
+            catch ( InterruptedException | OperationCanceledException e )
+            {
+                return Status.CANCEL_STATUS;
+            }
+            return Status.OK_STATUS;
+        }
+
+        private void regenerate( IProgressMonitor monitor )
+            throws CoreException, InterruptedException
+        {
+            IProject[] projects = takePending();
+            IWorkspace workspace = ResourcesPlugin.getWorkspace();
+            if ( projects.length == 0 || !workspace.isAutoBuilding() )
+            {
+                // regeneration stays forced until the next manual build
+                return;
+            }
+
+            IProject[] ordered = workspace.computeProjectOrder( projects ).projects;
+            int threads = getThreads();
+            log.debug( "Regenerating bundle manifests of {} projects, {} threads", ordered.length, threads );
+
+            if ( threads > 1 )
+            {
+                regenerateConcurrently( ordered, threads, monitor );
+                return;
+            }
+
+            SubMonitor progress = SubMonitor.convert( monitor, ordered.length );
+            for ( IProject project : ordered )
+            {
+                if ( progress.isCanceled() )
+                {
+                    throw new OperationCanceledException();
+                }
+                if ( project.isAccessible() && MavenBundlePluginConfigurator.isManifestRegenerationForced( project ) )
+                {
+                    project.build( IncrementalProjectBuilder.INCREMENTAL_BUILD, progress.split( 1 ) );
+                }
+                else
+                {
+                    progress.worked( 1 );
+                }
+            }
+        }
+
+        private void regenerateConcurrently( IProject[] ordered, int threads, IProgressMonitor monitor )
+            throws CoreException, InterruptedException
+        {
+            List<List<IProject>> levels = getLevels( ordered );
+            SubMonitor progress = SubMonitor.convert( monitor, levels.size() );
+            for ( List<IProject> level : levels )
+            {
+                JobGroup group = new JobGroup( getName(), threads, level.size() );
+                for ( IProject project : level )
+                {
+                    ProjectRegenerationJob job = new ProjectRegenerationJob( project );
+                    job.setJobGroup( group );
+                    job.schedule();
+                }
+                if ( !group.join( 0L, progress.split( 1 ) ) )
+                {
+                    group.cancel();
+                    throw new OperationCanceledException();
+                }
+            }
+        }
+    }
+
+    private static class ProjectRegenerationJob
+        extends WorkspaceJob
+    {
+        private final IProject project;
+
+        ProjectRegenerationJob( IProject project )
+        {
+            super( "Updating bundle manifest of " + project.getName() );
+            this.project = project;
+            setRule( project );
+            setSystem( true );
+        }
+
+        @Override
+        public IStatus runInWorkspace( IProgressMonitor monitor )
+            throws CoreException
+        {
+            if ( project.isAccessible() && MavenBundlePluginConfigurator.isManifestRegenerationForced( project ) )
+            {
+                MavenBundlePluginConfigurator.regenerate( project, monitor );
+            }
+            return Status.OK_STATUS;
+        }
+    }
+}
@@ -7,17 +7,15 @@
  *******************************************************************************/
 package org.sonatype.tycho.m2e.felix.internal;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 
 import org.apache.maven.artifact.versioning.ArtifactVersion;
@@ -25,19 +23,25 @@ import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.descriptor.MojoDescriptor;
 import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.Scanner;
 import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
-import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.QualifiedName;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.m2e.core.MavenPlugin;
 import org.eclipse.m2e.core.embedder.IMaven;
+import org.eclipse.m2e.core.internal.lifecyclemapping.LifecycleMappingFactory;
 import org.eclipse.m2e.core.lifecyclemapping.model.IPluginExecutionMetadata;
+import org.eclipse.m2e.core.lifecyclemapping.model.PluginExecutionAction;
 import org.eclipse.m2e.core.project.IMavenProjectFacade;
 import org.eclipse.m2e.core.project.MavenProjectChangedEvent;
 import org.eclipse.m2e.core.project.configurator.AbstractBuildParticipant;
@@ -47,7 +51,11 @@ import org.eclipse.m2e.core.project.configurator.MojoExecutionKey;
 import org.eclipse.m2e.core.project.configurator.ProjectConfigurationRequest;
 import org.eclipse.osgi.util.ManifestElement;
 import org.osgi.framework.BundleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonatype.plexus.build.incremental.BuildContext;
+import org.sonatype.tycho.m2e.internal.M2ETychoActivator;
+import org.sonatype.tycho.m2e.internal.Tracing;
 
 /**
  * Straightforward maven-bundle-plugin configurator.
@@ -61,15 +69,50 @@ import org.sonatype.plexus.build.incremental.BuildContext;
 public class MavenBundlePluginConfigurator
     extends AbstractProjectConfigurator
 {
+    private static final Logger log = LoggerFactory.getLogger( MavenBundlePluginConfigurator.class );
+
     private static final IMaven maven = MavenPlugin.getMaven();
 
     private static final QualifiedName PROP_FORCE_GENERATE =
         new QualifiedName( MavenBundlePluginConfigurator.class.getName(), "forceGenerate" );
 
+    private static final ManifestFingerprints fingerprints = ManifestFingerprints.getInstance();
+
+    private static final AmendedExecutionCache amendedExecutions = AmendedExecutionCache.getInstance();
+
+    private static final DependencyDigests dependencyDigests = DependencyDigests.getInstance();
+
+    private static final BundleExportIndex exportIndex = BundleExportIndex.getInstance();
+
+    private static final BndFileCache bndFiles = BndFileCache.getInstance();
+
+    private static final ManifestRegenerationScheduler scheduler = ManifestRegenerationScheduler.getInstance();
+
+    private static final BndIncludeFileWatcher includeFileWatcher = BndIncludeFileWatcher.getInstance();
+
+    private static final MojoParameterCache parameters = MojoParameterCache.getInstance();
+
+    private static final PackageReferenceCache packageReferences = PackageReferenceCache.getInstance();
+
+    private static final String[] CLASS_FILES = { "**/*.class" };
+
     private static final ArtifactVersion VERSION_2_3_6 = new DefaultArtifactVersion( "2.3.6" );
 
     public static final String PARAM_MANIFESTLOCATION = "manifestLocation";
 
+    /**
+     * Id of this configurator, see plugin.xml.
+     */
+    private static final String CONFIGURATOR_ID = "maven-bundle-plugin";
+
+    private static final String EMBED_DEPENDENCY = "Embed-Dependency";
+
+    /**
+     * Instructions that make generated bundle embed dependencies.
+     */
+    private static final String[] NOT_UNPACKED_INSTRUCTIONS =
+        { EMBED_DEPENDENCY, "Embed-Transitive", "Bundle-ClassPath" };
+
     @Override
     public void configure( ProjectConfigurationRequest request, IProgressMonitor monitor )
         throws CoreException
@@ -92,47 +135,62 @@ public class MavenBundlePluginConfigurator
                 IProject project = facade.getProject();
                 MavenProject mavenProject = facade.getMavenProject( monitor );
 
-                @SuppressWarnings( "unchecked" )
-                Map<String, String> instructions =
-                    maven.getMojoParameterValue( mavenProject, execution, "instructions", Map.class, monitor );
+                Map<String, String> instructions = getInstructions( facade, mavenProject, execution, monitor );
 
-                MojoExecution _execution = amendMojoExecution( mavenProject, execution, instructions );
+                MojoExecution _execution = amendMojoExecution( project, mavenProject, execution, instructions );
 
                 IFile manifest = getManifestFile( facade, _execution, monitor );
 
+                File outputDirectory = getOutputFolder( monitor, facade, _execution ).getLocation().toFile();
+
                 // regenerate bundle manifest if any of the following is true
                 // - full workspace build
                 // - PROP_FORCE_GENERATE project session property is set (see the comment below)
                 // - any of included bnd files changed
+                // - package-level references of changed class files changed
+                // - Declarative Services component class changed
+                // only forced regeneration ignores the fingerprint, full builds after workbench restart or "Clean
+                // all projects" do not regenerate manifests whose inputs did not change
 
                 boolean generate = IncrementalProjectBuilder.FULL_BUILD == kind;
 
                 // the property is set by OsgiBundleProjectConfigurator.mavenProjectChanged is a workaround for
                 // m2e design limitation, which does not allow project configurators trigger resource deltas
                 // visible to build participants. See comment in OsgiBundleProjectConfigurator.mavenProjectChanged
-                generate =
-                    generate || Boolean.parseBoolean( (String) project.getSessionProperty( PROP_FORCE_GENERATE ) );
+                boolean force = isManifestRegenerationForced( project );
+                generate = generate || force;
                 // reset FORCE flag so we don't regenerate forever
-                project.setSessionProperty( PROP_FORCE_GENERATE, null );
+                resetManifestRegeneration( project );
 
                 generate = generate || isIncludeBndFileChange( buildContext, instructions );
 
-                if ( !generate )
+                // changes to bnd files outside of project basedir are not visible in build context deltas
+                includeFileWatcher.setIncludes( project, getExternalIncludeBndFiles( mavenProject, instructions ) );
+
+                // keep package reference cache up-to-date even if the manifest is regenerated for other reasons
+                Set<String> components = new HashSet<String>();
+                generate =
+                    isPackageReferencesChange( buildContext, kind, project, outputDirectory, components ) || generate;
+
+                // changes of classes that are not components do not affect generated component descriptors
+                if ( !components.isEmpty() && isDeclerativeServices( mavenProject.getBasedir(), instructions ) )
                 {
-                    return null;
+                    deleteStaleComponentDescriptors( getOutputFolder( monitor, facade, _execution ), components,
+                                                     monitor );
+                    generate = true;
                 }
 
-                maven.execute( mavenProject, _execution, monitor );
-
-                manifest.refreshLocal( IResource.DEPTH_INFINITE, monitor ); // refresh parent?
+                // imports of projects that were not regenerated yet are needed to propagate export changes
+                exportIndex.indexIfAbsent( project, manifest.getLocation().toFile() );
 
-                if ( isDeclerativeServices( mavenProject.getBasedir(), instructions ) )
+                if ( !generate )
                 {
-                    IFolder outputFolder = getOutputFolder( monitor, facade, _execution );
-                    outputFolder.getFolder( "OSGI-OPT" ).refreshLocal( IResource.DEPTH_INFINITE, monitor );
-                    outputFolder.getFolder( "OSGI-INF" ).refreshLocal( IResource.DEPTH_INFINITE, monitor );
+                    return null;
                 }
 
+                generate( facade, mavenProject, _execution, instructions, manifest.getLocation().toFile(),
+                          outputDirectory, force, monitor );
+
                 return null;
             }
 
@@ -141,18 +199,36 @@ public class MavenBundlePluginConfigurator
                 throws CoreException
             {
                 File outputDirectory =
-                    getParameterValue( facade.getMavenProject(), "outputDirectory", File.class, _execution, monitor );
+                    parameters.getValue( facade, _execution, "outputDirectory", File.class,
+                                         () -> getParameterValue( facade.getMavenProject(), "outputDirectory",
+                                                                  File.class, _execution, monitor ) );
                 IPath outputPath = facade.getProjectRelativePath( outputDirectory.getAbsolutePath() );
                 IFolder outputFolder = facade.getProject().getFolder( outputPath );
                 return outputFolder;
             }
 
+            private List<File> getExternalIncludeBndFiles( MavenProject mavenProject,
+                                                           Map<String, String> instructions )
+            {
+                Path basedir = mavenProject.getBasedir().toPath().toAbsolutePath().normalize();
+                List<File> files = new ArrayList<File>();
+                for ( String path : getIncludeBndFilePaths( instructions ) )
+                {
+                    Path file = basedir.resolve( path ).normalize();
+                    if ( !file.startsWith( basedir ) )
+                    {
+                        files.add( file.toFile() );
+                    }
+                }
+                return files;
+            }
+
             private boolean isIncludeBndFileChange( BuildContext buildContext, Map<String, String> instructions )
                 throws CoreException
             {
                 for ( String path : getIncludeBndFilePaths( instructions ) )
                 {
-                    // this does not detect changes in outside ${project.basedir}
+                    // changes outside ${project.basedir} are detected by BndIncludeFileWatcher
 
                     if ( buildContext.hasDelta( path ) )
                     {
@@ -163,6 +239,55 @@ public class MavenBundlePluginConfigurator
                 return false;
             }
 
+            private boolean isPackageReferencesChange( BuildContext buildContext, int kind, IProject project,
+                                                       File outputDirectory, Set<String> components )
+            {
+                if ( IncrementalProjectBuilder.FULL_BUILD == kind )
+                {
+                    packageReferences.rebuild( project, outputDirectory );
+                    return false;
+                }
+
+                Scanner changed = buildContext.newScanner( outputDirectory );
+                changed.setIncludes( CLASS_FILES );
+                changed.scan();
+
+                Scanner deleted = buildContext.newDeleteScanner( outputDirectory );
+                deleted.setIncludes( CLASS_FILES );
+                deleted.scan();
+
+                if ( changed.getIncludedFiles().length == 0 && deleted.getIncludedFiles().length == 0 )
+                {
+                    return false;
+                }
+
+                return packageReferences.update( project, outputDirectory, changed.getIncludedFiles(),
+                                                 deleted.getIncludedFiles(), components );
+            }
+
+            /**
+             * Deletes descriptors of components whose class was deleted, bnd does not remove them from the output
+             * folder. Only descriptors with default component name, i.e. component class name, are recognized.
+             */
+            private void deleteStaleComponentDescriptors( IFolder outputFolder, Set<String> components,
+                                                          IProgressMonitor monitor )
+                throws CoreException
+            {
+                for ( String path : components )
+                {
+                    if ( outputFolder.getFile( path ).exists() )
+                    {
+                        continue;
+                    }
+                    String className = path.substring( 0, path.length() - ".class".length() ).replace( '/', '.' );
+                    IFile descriptor = outputFolder.getFolder( "OSGI-INF" ).getFile( className + ".xml" );
+                    if ( descriptor.exists() )
+                    {
+                        descriptor.delete( true, monitor );
+                    }
+                }
+            }
+
             @Override
             public void clean( IProgressMonitor monitor )
                 throws CoreException
@@ -170,40 +295,311 @@ public class MavenBundlePluginConfigurator
                 IMavenProjectFacade facade = getMavenProjectFacade();
                 MavenProject mavenProject = facade.getMavenProject( monitor );
 
-                @SuppressWarnings( "unchecked" )
-                Map<String, String> instructions =
-                    maven.getMojoParameterValue( mavenProject, execution, "instructions", Map.class, monitor );
+                Map<String, String> instructions = getInstructions( facade, mavenProject, execution, monitor );
 
                 if ( isDeclerativeServices( mavenProject.getBasedir(), instructions ) )
                 {
                     IFolder outputFolder = getOutputFolder( monitor, facade, execution );
                     outputFolder.getFolder( "OSGI-OPT" ).delete( true, monitor );
                     outputFolder.getFolder( "OSGI-INF" ).delete( true, monitor );
+
+                    // generated resources are gone, make sure the next build does not skip regeneration
+                    fingerprints.remove( facade.getProject(),
+                                         ManifestFingerprints.getKey( amendMojoExecution( facade.getProject(),
+                                                                                          mavenProject, execution,
+                                                                                          instructions ) ) );
                 }
             }
         };
     }
 
-    protected static MojoExecution amendMojoExecution( MavenProject mavenProject, MojoExecution execution,
-                                                       Map<String, String> instructions )
+    protected Map<String, String> getInstructions( IMavenProjectFacade facade, MavenProject mavenProject,
+                                                   MojoExecution execution, IProgressMonitor monitor )
+        throws CoreException
+    {
+        return getCachedInstructions( facade, mavenProject, execution, monitor );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Map<String, String> getCachedInstructions( IMavenProjectFacade facade, MavenProject mavenProject,
+                                                              MojoExecution execution, IProgressMonitor monitor )
+        throws CoreException
+    {
+        return parameters.getValue( facade, execution, "instructions", Map.class,
+                                    () -> maven.getMojoParameterValue( mavenProject, execution, "instructions",
+                                                                       Map.class, monitor ) );
+    }
+
+    /**
+     * Generates bundle manifest unless none of its inputs changed since the last time it was generated and refreshes
+     * generated resources in workspace. Returns {@code true} if the manifest was generated. Forced generation does not
+     * check the inputs.
+     */
+    static boolean generate( IMavenProjectFacade facade, MavenProject mavenProject, MojoExecution _execution,
+                             Map<String, String> instructions, File manifestFile, File outputDirectory, boolean force,
+                             IProgressMonitor monitor )
+        throws CoreException
+    {
+        IProject project = facade.getProject();
+
+        GeneratedResources before = GeneratedResources.snapshot( manifestFile, outputDirectory );
+
+        // skip regeneration if none of the manifest inputs changed since the last time it was generated and generated
+        // outputs were not modified since, which also holds after workbench restart
+        String fingerprintKey = ManifestFingerprints.getKey( _execution );
+        // only computed when it is compared or stored
+        String fingerprint = null;
+        if ( !force && manifestFile.isFile() )
+        {
+            fingerprint =
+                ManifestFingerprints.compute( project, mavenProject, _execution, instructions, outputDirectory );
+            if ( fingerprints.matches( project, fingerprintKey, fingerprint, before.getContentHashes() ) )
+            {
+                Tracing.trace( log, Tracing.MANIFEST, "Inputs of {} did not change, manifest is not regenerated",
+                               project.getName() );
+                return false;
+            }
+        }
+
+        if ( !generateInProcess( mavenProject, _execution, instructions, manifestFile, outputDirectory ) )
+        {
+            maven.execute( mavenProject, _execution, monitor );
+
+            // descriptors that are project resources are already in the output folder
+            if ( isUnpackedComponentsOnly( mavenProject, instructions )
+                && isGeneratedComponents( mavenProject.getBasedir(), instructions ) )
+            {
+                generateComponents( mavenProject, _execution, monitor );
+            }
+        }
+
+        dependencyDigests.update( project, mavenProject );
+
+        // only refresh resources that were actually written or deleted, files rewritten with equivalent
+        // content are restored so PDE does not re-resolve the bundle and its dependents
+        GeneratedResources after = GeneratedResources.snapshot( manifestFile, outputDirectory );
+        before.restoreUnchanged( after );
+        GeneratedResources.refresh( facade, before.getChanges( after ), monitor );
+
+        if ( manifestFile.isFile() )
+        {
+            if ( fingerprint == null )
+            {
+                fingerprint =
+                ManifestFingerprints.compute( project, mavenProject, _execution, instructions, outputDirectory );
+            }
+            fingerprints.store( project, fingerprintKey, fingerprint, after.getContentHashes() );
+        }
+
+        // regenerate downstream projects that import packages whose export changed
+        exportIndex.indexIfAbsent( project, before.getManifestContent() );
+        Set<IProject> dependents = exportIndex.update( project, manifestFile );
+        if ( !dependents.isEmpty() )
+        {
+            scheduler.schedule( dependents );
+        }
+
+        return true;
+    }
+
+    /**
+     * Declarative Services projects that embed dependencies do not unpack generated bundle, unpacking would copy all
+     * embedded jars and resources to the output folder on each regeneration. Component and metatype descriptors are
+     * unpacked by a separate execution that does not embed dependencies, PDE classpath contributor already references
+     * embedded artifacts in place.
+     */
+    static boolean isUnpackedComponentsOnly( MavenProject mavenProject, Map<String, String> instructions )
+    {
+        return instructions != null && instructions.containsKey( EMBED_DEPENDENCY )
+            && isDeclerativeServices( mavenProject.getBasedir(), instructions );
+    }
+
+    private static void generateComponents( MavenProject mavenProject, MojoExecution _execution,
+                                            IProgressMonitor monitor )
+        throws CoreException
+    {
+        File manifestLocation;
+        try
+        {
+            manifestLocation = Files.createTempDirectory( "m2e-tycho-components" ).toFile();
+        }
+        catch ( IOException e )
+        {
+            throw new CoreException( new Status( IStatus.ERROR, M2ETychoActivator.PLUGIN_ID,
+                                                 "Could not create temporary manifest location", e ) );
+        }
+        try
+        {
+            Xpp3Dom configuration = new Xpp3Dom( _execution.getConfiguration() );
+            setBoolean( configuration, "unpackBundle", true );
+            setValue( configuration, PARAM_MANIFESTLOCATION, manifestLocation.getAbsolutePath() );
+            Xpp3Dom instructions = configuration.getChild( "instructions" );
+            if ( instructions != null )
+            {
+                for ( String name : NOT_UNPACKED_INSTRUCTIONS )
+                {
+                    removeChildren( instructions, name );
+                }
+            }
+
+            MojoExecution componentsExecution =
+                new MojoExecution( _execution.getPlugin(), _execution.getGoal(), _execution.getExecutionId() );
+            componentsExecution.setMojoDescriptor( _execution.getMojoDescriptor() );
+            componentsExecution.setLifecyclePhase( _execution.getLifecyclePhase() );
+            componentsExecution.setConfiguration( configuration );
+
+            maven.execute( mavenProject, componentsExecution, monitor );
+        }
+        finally
+        {
+            try
+            {
+                FileUtils.deleteDirectory( manifestLocation );
+            }
+            catch ( IOException e )
+            {
+                log.debug( "Could not delete temporary manifest location {}", manifestLocation, e );
+            }
+        }
+    }
+
+    private static boolean generateInProcess( MavenProject mavenProject, MojoExecution _execution,
+                                              Map<String, String> instructions, File manifestFile,
+                                              File outputDirectory )
     {
+        if ( !BndManifestEngine.isEnabled() || !BndManifestEngine.canHandle( mavenProject, _execution, instructions ) )
+        {
+            return false;
+        }
+
+        return BndManifestEngine.generate( mavenProject, instructions, manifestFile, outputDirectory ) != null;
+    }
+
+    /**
+     * Regenerates bundle manifest of the project outside of workspace build, i.e. without holding workspace build rule.
+     * Only the executions the project lifecycle mapping maps to this configurator are executed, same as during the
+     * build.
+     * <p>
+     * The project scheduling rule is held while the manifest is regenerated, so regeneration never runs concurrently
+     * with a build of the project or with another regeneration of the same project. Independent projects can be
+     * regenerated concurrently, each mojo execution runs in its own maven execution context and only writes to the
+     * project it was executed for.
+     */
+    static void regenerate( IProject project, IProgressMonitor monitor )
+        throws CoreException
+    {
+        Job.getJobManager().beginRule( project, monitor );
+        try
+        {
+            IMavenProjectFacade facade = MavenPlugin.getMavenProjectRegistry().getProject( project );
+            if ( facade == null )
+            {
+                return;
+            }
+
+            boolean force = isManifestRegenerationForced( project );
+
+            MavenPlugin.getMavenProjectRegistry().execute( facade, ( context, pm ) -> {
+                MavenProject mavenProject = facade.getMavenProject( pm );
+                for ( MojoExecution execution : getMappedExecutions( facade, pm ) )
+                {
+                    Map<String, String> instructions = getCachedInstructions( facade, mavenProject, execution, pm );
+                    MojoExecution _execution = amendMojoExecution( project, mavenProject, execution, instructions );
+                    File manifestLocation =
+                        parameters.getValue( facade, _execution, PARAM_MANIFESTLOCATION, File.class,
+                                             () -> maven.getMojoParameterValue( mavenProject, _execution,
+                                                                                PARAM_MANIFESTLOCATION, File.class,
+                                                                                pm ) );
+                    File outputDirectory =
+                        parameters.getValue( facade, _execution, "outputDirectory", File.class,
+                                             () -> maven.getMojoParameterValue( mavenProject, _execution,
+                                                                                "outputDirectory", File.class, pm ) );
+                    generate( facade, mavenProject, _execution, instructions,
+                              new File( manifestLocation, "MANIFEST.MF" ), outputDirectory, force, pm );
+                }
+                return null;
+            }, monitor );
+
+            resetManifestRegeneration( project );
+        }
+        finally
+        {
+            Job.getJobManager().endRule( project );
+        }
+    }
+
+    /**
+     * Returns mojo executions the project lifecycle mapping maps to this configurator.
+     */
+    @SuppressWarnings( "restriction" )
+    private static List<MojoExecution> getMappedExecutions( IMavenProjectFacade facade, IProgressMonitor monitor )
+        throws CoreException
+    {
+        List<MojoExecution> executions = new ArrayList<MojoExecution>();
+        Map<MojoExecutionKey, List<IPluginExecutionMetadata>> mapping = facade.getMojoExecutionMapping();
+        if ( mapping == null )
+        {
+            return executions;
+        }
+        for ( Map.Entry<MojoExecutionKey, List<IPluginExecutionMetadata>> entry : mapping.entrySet() )
+        {
+            if ( entry.getValue() == null )
+            {
+                continue;
+            }
+            for ( IPluginExecutionMetadata metadata : entry.getValue() )
+            {
+                if ( PluginExecutionAction.configurator == metadata.getAction()
+                    && CONFIGURATOR_ID.equals( LifecycleMappingFactory.getProjectConfiguratorId( metadata ) ) )
+                {
+                    MojoExecution execution = facade.getMojoExecution( entry.getKey(), monitor );
+                    if ( execution != null )
+                    {
+                        executions.add( execution );
+                    }
+                    break;
+                }
+            }
+        }
+        return executions;
+    }
+
+    protected static MojoExecution amendMojoExecution( IProject project, MavenProject mavenProject,
+                                                       MojoExecution execution, Map<String, String> instructions )
+    {
+        boolean unpackBundle = isDeclerativeServices( mavenProject.getBasedir(), instructions )
+            && !isUnpackedComponentsOnly( mavenProject, instructions );
+        return amendedExecutions.getExecution( project, execution, unpackBundle,
+                                               () -> amendMojoExecution( execution, unpackBundle ) );
+    }
+
+    private static MojoExecution amendMojoExecution( MojoExecution execution, boolean unpackBundle )
+    {
+        MojoExecution _execution;
         if ( "bundle".equals( execution.getGoal() ) )
         {
             // do not generate complete bundle. this is both slow and can produce unexpected workspace changes
             // that will trigger unexpected/endless workspace build.
             // we rely on the fact that ManifestPlugin mojo extends BundlePlugin and does not introduce any
             // additional required parameters, so can run manifest goal in place of bundle goal.
-            MojoDescriptor descriptor = execution.getMojoDescriptor().clone();
-            descriptor.setGoal( "manifest" );
-            descriptor.setImplementation( "org.apache.felix.bundleplugin.ManifestPlugin" );
-            MojoExecution _execution =
+            MojoDescriptor descriptor = amendedExecutions.getDescriptor( execution, () -> {
+                MojoDescriptor clone = execution.getMojoDescriptor().clone();
+                clone.setGoal( "manifest" );
+                clone.setImplementation( "org.apache.felix.bundleplugin.ManifestPlugin" );
+                return clone;
+            } );
+            _execution =
                 new MojoExecution( execution.getPlugin(), "manifest", "m2e-tycho:" + execution.getExecutionId()
                     + ":manifest" );
-            _execution.setConfiguration( execution.getConfiguration() );
             _execution.setMojoDescriptor( descriptor );
-            _execution.setLifecyclePhase( execution.getLifecyclePhase() );
-            execution = _execution;
         }
+        else
+        {
+            // amended execution is cached, do not modify the original execution
+            _execution = new MojoExecution( execution.getPlugin(), execution.getGoal(), execution.getExecutionId() );
+            _execution.setMojoDescriptor( execution.getMojoDescriptor() );
+        }
+        _execution.setLifecyclePhase( execution.getLifecyclePhase() );
 
         Xpp3Dom configuration = new Xpp3Dom( execution.getConfiguration() );
         if ( VERSION_2_3_6.compareTo( new DefaultArtifactVersion( execution.getVersion() ) ) <= 0 )
@@ -211,14 +607,14 @@ public class MavenBundlePluginConfigurator
             setBoolean( configuration, "rebuildBundle", true );
         }
 
-        if ( isDeclerativeServices( mavenProject.getBasedir(), instructions ) )
+        if ( unpackBundle )
         {
             setBoolean( configuration, "unpackBundle", true );
         }
 
-        execution.setConfiguration( configuration );
+        _execution.setConfiguration( configuration );
 
-        return execution;
+        return _execution;
     }
 
     protected static boolean isDeclerativeServices( Map<String, String> instructions )
@@ -233,10 +629,9 @@ public class MavenBundlePluginConfigurator
             return true;
         }
 
-        // Properties class can be used to read bnd files http://www.aqute.biz/Bnd/Format
         for ( String path : getIncludeBndFilePaths( instructions ) )
         {
-            if ( isDeclerativeServices( loadBndFile( new File( basedir, path ) ) ) )
+            if ( isDeclerativeServices( bndFiles.getProperties( new File( basedir, path ) ) ) )
             {
                 return true;
             }
@@ -245,24 +640,57 @@ public class MavenBundlePluginConfigurator
         return false;
     }
 
-    private static Map<String, String> loadBndFile( File file )
+    /**
+     * Returns {@code true} if bnd generates component descriptors, i.e. for DS annotations and for
+     * {@code Service-Component} entries other than paths of descriptor resources.
+     */
+    private static boolean isGeneratedComponents( File basedir, Map<String, String> instructions )
     {
-        Properties properties = new Properties();
-        try (InputStream is = new BufferedInputStream( new FileInputStream( file ) ))
+        if ( isGeneratedComponents( instructions ) )
         {
-            properties.load( is );
+            return true;
         }
-        catch ( IOException e )
+
+        for ( String path : getIncludeBndFilePaths( instructions ) )
         {
-            // TODO create error marker
-            return Collections.emptyMap();
+            if ( isGeneratedComponents( bndFiles.getProperties( new File( basedir, path ) ) ) )
+            {
+                return true;
+            }
         }
-        Map<String, String> map = new LinkedHashMap<>();
-        for ( String key : properties.stringPropertyNames() )
+
+        return false;
+    }
+
+    private static boolean isGeneratedComponents( Map<String, String> instructions )
+    {
+        if ( instructions.containsKey( "_dsannotations" ) || instructions.containsKey( "-dsannotations" ) )
         {
-            map.put( key, properties.getProperty( key ) );
+            return true;
+        }
+
+        String components = instructions.get( "Service-Component" );
+        if ( components == null )
+        {
+            return false;
+        }
+        try
+        {
+            ManifestElement[] elements = ManifestElement.parseHeader( "Service-Component", components );
+            for ( ManifestElement element : elements != null ? elements : new ManifestElement[0] )
+            {
+                if ( !element.getValue().endsWith( ".xml" ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch ( BundleException e )
+        {
+            // let bnd decide
+            return true;
         }
-        return map;
     }
 
     static List<String> getIncludeBndFilePaths( Map<String, String> instructions )
@@ -278,6 +706,11 @@ public class MavenBundlePluginConfigurator
             return Collections.emptyList();
         }
 
+        return bndFiles.getIncludePaths( include, MavenBundlePluginConfigurator::parseIncludeBndFilePaths );
+    }
+
+    private static List<String> parseIncludeBndFilePaths( String include )
+    {
         ManifestElement[] elements;
         try
         {
@@ -305,6 +738,11 @@ public class MavenBundlePluginConfigurator
     }
 
     private static void setBoolean( Xpp3Dom configuration, String name, boolean value )
+    {
+        setValue( configuration, name, Boolean.toString( value ) );
+    }
+
+    private static void setValue( Xpp3Dom configuration, String name, String value )
     {
         Xpp3Dom parameter = configuration.getChild( name );
         if ( parameter == null )
@@ -312,25 +750,98 @@ public class MavenBundlePluginConfigurator
             parameter = new Xpp3Dom( name );
             configuration.addChild( parameter );
         }
-        parameter.setValue( Boolean.toString( value ) );
+        parameter.setValue( value );
+    }
+
+    private static void removeChildren( Xpp3Dom configuration, String name )
+    {
+        for ( int i = configuration.getChildCount() - 1; i >= 0; i-- )
+        {
+            if ( name.equals( configuration.getChild( i ).getName() ) )
+            {
+                configuration.removeChild( i );
+            }
+        }
     }
 
     @Override
     public void mavenProjectChanged( MavenProjectChangedEvent event, IProgressMonitor monitor )
         throws CoreException
     {
+        IMavenProjectFacade facade =
+            event.getMavenProject() != null ? event.getMavenProject() : event.getOldMavenProject();
+        if ( facade != null )
+        {
+            parameters.invalidate( facade.getProject() );
+        }
+
+        if ( MavenProjectChangedEvent.KIND_REMOVED == event.getKind() && facade != null )
+        {
+            includeFileWatcher.setIncludes( facade.getProject(), Collections.<File> emptyList() );
+            exportIndex.remove( facade.getProject() );
+            dependencyDigests.remove( facade.getProject() );
+            packageReferences.remove( facade.getProject() );
+            amendedExecutions.remove( facade.getProject() );
+        }
+
+        if ( MavenProjectChangedEvent.KIND_CHANGED == event.getKind()
+            && !getPluginVersions( event.getOldMavenProject() ).equals( getPluginVersions( event.getMavenProject() ) ) )
+        {
+            // executions of the previous plugin version are never used again by the project
+            amendedExecutions.remove( facade.getProject() );
+        }
+
         if ( MavenProjectChangedEvent.KIND_CHANGED == event.getKind()
             && MavenProjectChangedEvent.FLAG_DEPENDENCIES == event.getFlags() )
         {
-            forceManifestRegeneration( event.getMavenProject().getProject(), monitor );
+            IProject project = event.getMavenProject().getProject();
+            MavenProject mavenProject = event.getMavenProject().getMavenProject();
+
+            // m2e also fires dependency change events for re-resolutions that produce the same artifacts
+            if ( mavenProject != null && !dependencyDigests.update( project, mavenProject ) )
+            {
+                Tracing.trace( log, Tracing.MANIFEST, "Resolved dependencies of {} did not change, manifest is not"
+                    + " regenerated", project.getName() );
+                return;
+            }
+
+            Tracing.trace( log, Tracing.MANIFEST, "Resolved dependencies of {} changed, manifest is regenerated",
+                           project.getName() );
+
+            // dependency changes come in bursts, regenerate all affected projects in one pass
+            scheduler.schedule( Collections.singleton( project ) );
+        }
+    }
+
+    /**
+     * Returns versions of maven-bundle-plugin executions of the project.
+     */
+    private static Set<String> getPluginVersions( IMavenProjectFacade facade )
+    {
+        Set<String> versions = new HashSet<String>();
+        Map<MojoExecutionKey, List<IPluginExecutionMetadata>> mapping =
+            facade != null ? facade.getMojoExecutionMapping() : null;
+        if ( mapping != null )
+        {
+            for ( MojoExecutionKey key : mapping.keySet() )
+            {
+                if ( "org.apache.felix".equals( key.getGroupId() )
+                    && "maven-bundle-plugin".equals( key.getArtifactId() ) )
+                {
+                    versions.add( key.getVersion() );
+                }
+            }
         }
+        return versions;
     }
 
     protected IFile getManifestFile( IMavenProjectFacade facade, MojoExecution execution, IProgressMonitor monitor )
         throws CoreException
     {
         File manifestFile =
-            getParameterValue( facade.getMavenProject(), PARAM_MANIFESTLOCATION, File.class, execution, monitor );
+            parameters.getValue( facade, execution, PARAM_MANIFESTLOCATION, File.class,
+                                 () -> getParameterValue( facade.getMavenProject(), PARAM_MANIFESTLOCATION,
+                                                          File.class, execution, monitor ) );
         IPath projectPath = facade.getProjectRelativePath( manifestFile.getAbsolutePath() ).append( "MANIFEST.MF" );
         return facade.getProject().getFile( projectPath );
     }
@@ -386,10 +897,32 @@ public class MavenBundlePluginConfigurator
 
     protected void forceManifestRegeneration( IProject project, IProgressMonitor monitor )
         throws CoreException
+    {
+        forceManifestRegeneration( project );
+    }
+
+    static void forceManifestRegeneration( IProject project )
+        throws CoreException
     {
         // this is a less pretty way to force bundle manifest regeneration.
         // the property is checked and reset by the build participant
         project.setSessionProperty( PROP_FORCE_GENERATE, "true" );
+        // session properties do not survive workbench restart
+        fingerprints.setForced( project, true );
+    }
+
+    static boolean isManifestRegenerationForced( IProject project )
+        throws CoreException
+    {
+        return Boolean.parseBoolean( (String) project.getSessionProperty( PROP_FORCE_GENERATE ) )
+            || fingerprints.isForced( project );
+    }
+
+    private static void resetManifestRegeneration( IProject project )
+        throws CoreException
+    {
+        project.setSessionProperty( PROP_FORCE_GENERATE, null );
+        fingerprints.setForced( project, false );
     }
 
 }
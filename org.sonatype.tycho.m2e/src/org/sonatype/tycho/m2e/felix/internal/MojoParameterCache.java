@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.plugin.MojoExecution;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.m2e.core.project.IMavenProjectFacade;
+import org.eclipse.m2e.core.project.configurator.MojoExecutionKey;
+
+/**
+ * Evaluated mojo parameter values, per project facade and mojo execution.
+ * <p>
+ * Parameter evaluation goes through maven expression evaluator and is relatively expensive, while the values only
+ * change when project pom.xml changes. Cached values are discarded when the project facade is replaced or when
+ * {@link #invalidate(IProject)} is called for the project.
+ */
+class MojoParameterCache
+{
+    private static final Object NULL = new Object();
+
+    private static final MojoParameterCache INSTANCE = new MojoParameterCache();
+
+    public interface ParameterResolver<T>
+    {
+        T resolve()
+            throws CoreException;
+    }
+
+    private static class FacadeParameters
+    {
+        final IMavenProjectFacade facade;
+
+        final Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+        FacadeParameters( IMavenProjectFacade facade )
+        {
+            this.facade = facade;
+        }
+    }
+
+    private final Map<IProject, FacadeParameters> projects = new ConcurrentHashMap<IProject, FacadeParameters>();
+
+    private MojoParameterCache()
+    {
+    }
+
+    public static MojoParameterCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public <T> T getValue( IMavenProjectFacade facade, MojoExecution execution, String parameter, Class<T> type,
+                           ParameterResolver<T> resolver )
+        throws CoreException
+    {
+        FacadeParameters parameters = projects.get( facade.getProject() );
+        if ( parameters == null || parameters.facade != facade )
+        {
+            parameters = new FacadeParameters( facade );
+            projects.put( facade.getProject(), parameters );
+        }
+
+        String key = new MojoExecutionKey( execution ).toString() + "#" + parameter;
+        Object value = parameters.values.get( key );
+        if ( value == null )
+        {
+            value = resolver.resolve();
+            parameters.values.put( key, value != null ? value : NULL );
+        }
+
+        return value != NULL ? type.cast( value ) : null;
+    }
+
+    public void invalidate( IProject project )
+    {
+        projects.remove( project );
+    }
+}
@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.felix.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-project cache of package-level class references, i.e. packages defined in project output folder and packages
+ * referenced from each of them.
+ * <p>
+ * Import-Package, Export-Package and {@code uses:} directives calculated by bnd only depend on this information, so
+ * changes to class files that do not change package-level references do not require bundle manifest regeneration. The
+ * cache is updated from incremental build deltas and only changed class files are re-read.
+ * <p>
+ * The cache also remembers which classes are Declarative Services components, so generated component descriptors only
+ * need to be updated when a component class changes.
+ * <p>
+ * The cache only decides whether the manifest needs to be regenerated and feeds manifest fingerprints, headers
+ * themselves are still calculated by bnd from the whole output folder. Cached references of a project are only read
+ * and changed while holding the lock of its {@link ProjectPackages}, regeneration jobs of different projects and
+ * builds may access the cache concurrently.
+ */
+class PackageReferenceCache
+{
+    private static final Logger log = LoggerFactory.getLogger( PackageReferenceCache.class );
+
+    private static final PackageReferenceCache INSTANCE = new PackageReferenceCache();
+
+    private final Map<IProject, ProjectPackages> projects = new ConcurrentHashMap<IProject, ProjectPackages>();
+
+    private PackageReferenceCache()
+    {
+    }
+
+    public static PackageReferenceCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Re-reads all class files from the output directory. Class files are read into a new cache entry that is only
+     * published once complete, concurrent readers keep using the previous entry until then.
+     */
+    public void rebuild( IProject project, File outputDirectory )
+    {
+        doRebuild( project, outputDirectory );
+    }
+
+    private ProjectPackages doRebuild( IProject project, File outputDirectory )
+    {
+        ProjectPackages packages = new ProjectPackages( outputDirectory );
+        synchronized ( packages )
+        {
+            packages.scan( outputDirectory, "" );
+        }
+        projects.put( project, packages );
+        return packages;
+    }
+
+    /**
+     * Updates the digest with package-level references and class file versions of all classes in the output
+     * directory, and with content of annotated classes. Output directory is only scanned if the project is not cached.
+     */
+    public void digest( IProject project, File outputDirectory, MessageDigest digest )
+    {
+        ProjectPackages packages = projects.get( project );
+        if ( packages == null || !packages.outputDirectory.equals( outputDirectory ) )
+        {
+            packages = doRebuild( project, outputDirectory );
+        }
+
+        synchronized ( packages )
+        {
+            for ( Map.Entry<String, ClassFileReferences> entry : new TreeMap<String, ClassFileReferences>(
+                packages.classes ).entrySet() )
+            {
+                ClassFileReferences references = entry.getValue();
+                ManifestFingerprints.update( digest, entry.getKey() );
+                ManifestFingerprints.update( digest, references.getPackageName() );
+                ManifestFingerprints.update( digest, String.valueOf( references.getMajorVersion() ) );
+                ManifestFingerprints.update( digest,
+                                             new TreeSet<String>( references.getReferencedPackages() ).toString() );
+                if ( references.isAnnotated() )
+                {
+                    // annotation attributes, e.g. package versions and component properties, are not references
+                    ManifestFingerprints.update( digest, new File( outputDirectory, entry.getKey() ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates cached package references with changed and deleted class files.
+     *
+     * @param changed output directory relative paths of added or changed class files
+     * @param deleted output directory relative paths of deleted class files
+     * @param components receives paths of changed and deleted class files that are or were components
+     * @return {@code true} if package-level references changed or are not known, i.e. the project was not cached
+     */
+    public boolean update( IProject project, File outputDirectory, String[] changed, String[] deleted,
+                           Set<String> components )
+    {
+        ProjectPackages packages = projects.get( project );
+        if ( packages == null || !packages.outputDirectory.equals( outputDirectory ) )
+        {
+            // nothing to compare to, e.g. after workbench restart. manifest fingerprint tells if regeneration is needed
+            packages = doRebuild( project, outputDirectory );
+            synchronized ( packages )
+            {
+                for ( String path : changed )
+                {
+                    packages.addComponent( path, components );
+                }
+            }
+            return true;
+        }
+
+        synchronized ( packages )
+        {
+            boolean result = false;
+
+            Map<String, ClassFileReferences> updated = new HashMap<String, ClassFileReferences>();
+            for ( String path : changed )
+            {
+                try
+                {
+                    updated.put( path, ClassFileReferences.read( new File( outputDirectory, path ) ) );
+                }
+                catch ( IOException e )
+                {
+                    log.debug( "Could not read class file {}", path, e );
+                    result = true;
+                }
+            }
+
+            Set<String> affected = new HashSet<String>();
+            for ( String path : deleted )
+            {
+                packages.addPackageName( path, affected );
+                packages.addComponent( path, components );
+            }
+            for ( String path : changed )
+            {
+                packages.addPackageName( path, affected );
+                packages.addComponent( path, components );
+            }
+            for ( Map.Entry<String, ClassFileReferences> entry : updated.entrySet() )
+            {
+                affected.add( entry.getValue().getPackageName() );
+                if ( entry.getValue().isComponent() )
+                {
+                    components.add( entry.getKey() );
+                }
+            }
+            Map<String, Set<String>> before = packages.snapshot( affected );
+
+            for ( String path : deleted )
+            {
+                packages.remove( path );
+            }
+            for ( String path : changed )
+            {
+                packages.remove( path );
+            }
+            for ( Map.Entry<String, ClassFileReferences> entry : updated.entrySet() )
+            {
+                packages.put( entry.getKey(), entry.getValue() );
+            }
+
+            return result || !before.equals( packages.snapshot( affected ) );
+        }
+    }
+
+    public void remove( IProject project )
+    {
+        projects.remove( project );
+    }
+
+    private static class ProjectPackages
+    {
+        final File outputDirectory;
+
+        final Map<String, ClassFileReferences> classes = new HashMap<String, ClassFileReferences>();
+
+        /**
+         * package -> referenced package -> number of package classes that reference it. The package itself is counted
+         * as referenced by each of its classes, so the package is present for as long as it has classes.
+         */
+        final Map<String, Map<String, Integer>> packages = new HashMap<String, Map<String, Integer>>();
+
+        ProjectPackages( File outputDirectory )
+        {
+            this.outputDirectory = outputDirectory;
+        }
+
+        void scan( File directory, String path )
+        {
+            File[] members = directory.listFiles();
+            if ( members == null )
+            {
+                return;
+            }
+            for ( File member : members )
+            {
+                String name = path.isEmpty() ? member.getName() : path + "/" + member.getName();
+                if ( member.isDirectory() )
+                {
+                    scan( member, name );
+                }
+                else if ( name.endsWith( ".class" ) )
+                {
+                    add( name );
+                }
+            }
+        }
+
+        void add( String path )
+        {
+            try
+            {
+                put( path, ClassFileReferences.read( new File( outputDirectory, path ) ) );
+            }
+            catch ( IOException e )
+            {
+                log.debug( "Could not read class file {}", path, e );
+            }
+        }
+
+        void put( String path, ClassFileReferences references )
+        {
+            classes.put( path, references );
+
+            Map<String, Integer> counts = packages.get( references.getPackageName() );
+            if ( counts == null )
+            {
+                counts = new HashMap<String, Integer>();
+                packages.put( references.getPackageName(), counts );
+            }
+            increment( counts, references.getPackageName() );
+            for ( String pkg : references.getReferencedPackages() )
+            {
+                increment( counts, pkg );
+            }
+        }
+
+        void remove( String path )
+        {
+            ClassFileReferences references = classes.remove( path );
+            if ( references == null )
+            {
+                return;
+            }
+            Map<String, Integer> counts = packages.get( references.getPackageName() );
+            decrement( counts, references.getPackageName() );
+            for ( String pkg : references.getReferencedPackages() )
+            {
+                decrement( counts, pkg );
+            }
+            if ( counts.isEmpty() )
+            {
+                packages.remove( references.getPackageName() );
+            }
+        }
+
+        void addPackageName( String path, Set<String> packageNames )
+        {
+            ClassFileReferences references = classes.get( path );
+            if ( references != null )
+            {
+                packageNames.add( references.getPackageName() );
+            }
+        }
+
+        void addComponent( String path, Set<String> components )
+        {
+            ClassFileReferences references = classes.get( path );
+            if ( references != null && references.isComponent() )
+            {
+                components.add( path );
+            }
+        }
+
+        Map<String, Set<String>> snapshot( Set<String> packageNames )
+        {
+            Map<String, Set<String>> snapshot = new HashMap<String, Set<String>>();
+            for ( String pkg : packageNames )
+            {
+                Map<String, Integer> counts = packages.get( pkg );
+                snapshot.put( pkg, counts != null ? new HashSet<String>( counts.keySet() ) : null );
+            }
+            return snapshot;
+        }
+
+        private static void increment( Map<String, Integer> counts, String pkg )
+        {
+            Integer count = counts.get( pkg );
+            counts.put( pkg, count != null ? count + 1 : 1 );
+        }
+
+        private static void decrement( Map<String, Integer> counts, String pkg )
+        {
+            Integer count = counts.get( pkg );
+            if ( count == null || count <= 1 )
+            {
+                counts.remove( pkg );
+            }
+            else
+            {
+                counts.put( pkg, count - 1 );
+            }
+        }
+    }
+}
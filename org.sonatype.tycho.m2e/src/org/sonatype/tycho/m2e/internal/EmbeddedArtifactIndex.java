@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.sonatype.tycho.m2e.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.m2e.core.embedder.ArtifactKey;
+import org.eclipse.m2e.core.project.IMavenProjectFacade;
+import org.eclipse.m2e.core.project.MavenProjectChangedEvent;
+
+/**
+ * Workspace-wide reverse index of Embedded-Artifacts headers, maps embedded maven artifacts to workspace projects that
+ * embed them and to the corresponding Bundle-ClassPath entries.
+ * <p>
+ * The index is fed by {@link EmbeddedArtifacts}, every time Embedded-Artifacts of a project are (re)read the project
+ * entries are replaced, and removed and closed projects are dropped. Only projects whose Embedded-Artifacts were read
+ * are indexed, which includes every project whose classpath is cached by {@link PDEClasspathContributor} or the
+ * launch classpath resolver. Lookups validate indexed projects against the current bundle manifest modification stamp,
+ * manifests that changed since they were indexed are re-read.
+ */
+public class EmbeddedArtifactIndex
+{
+    private static final EmbeddedArtifactIndex INSTANCE = new EmbeddedArtifactIndex();
+
+    /**
+     * embedded artifact -> embedding project -> Bundle-ClassPath entry
+     */
+    private final Map<ArtifactKey, Map<IProject, String>> index =
+        new ConcurrentHashMap<ArtifactKey, Map<IProject, String>>();
+
+    /**
+     * indexed project -> embedded artifacts, used to remove stale index entries
+     */
+    private final Map<IProject, Map<ArtifactKey, String>> projects =
+        new ConcurrentHashMap<IProject, Map<ArtifactKey, String>>();
+
+    private EmbeddedArtifactIndex()
+    {
+    }
+
+    public static EmbeddedArtifactIndex getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns indexed workspace projects that embed the artifact and the corresponding Bundle-ClassPath entries.
+     */
+    public Map<IProject, String> getEmbeddingProjects( ArtifactKey artifact )
+    {
+        Map<IProject, String> embedding = index.get( artifact );
+        if ( embedding == null )
+        {
+            return Collections.emptyMap();
+        }
+        Map<IProject, String> result = new LinkedHashMap<IProject, String>();
+        for ( IProject project : new ArrayList<IProject>( embedding.keySet() ) )
+        {
+            // stamp-validated, re-reading changed manifest updates the index
+            String bundlePath = EmbeddedArtifacts.getEmbeddedArtifacts( project ).get( artifact );
+            if ( bundlePath != null )
+            {
+                result.put( project, bundlePath );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns indexed workspace projects that embed the artifact of the changed maven project, as it was before or is
+     * after the change.
+     */
+    public Set<IProject> getEmbeddingProjects( MavenProjectChangedEvent event )
+    {
+        Set<IProject> result = new LinkedHashSet<IProject>();
+        for ( IMavenProjectFacade facade : new IMavenProjectFacade[] { event.getOldMavenProject(),
+            event.getMavenProject() } )
+        {
+            if ( facade != null )
+            {
+                result.addAll( getEmbeddingProjects( facade.getArtifactKey() ).keySet() );
+            }
+        }
+        result.remove( event.getSource().getProject() );
+        return result;
+    }
+
+    /**
+     * Replaces index entries of the project with the given embedded artifacts.
+     */
+    synchronized void update( IProject project, Map<ArtifactKey, String> artifacts )
+    {
+        Map<ArtifactKey, String> previous = projects.put( project, artifacts );
+        if ( previous == artifacts )
+        {
+            return;
+        }
+        if ( previous != null )
+        {
+            for ( ArtifactKey artifact : previous.keySet() )
+            {
+                if ( !artifacts.containsKey( artifact ) )
+                {
+                    removeEntry( artifact, project );
+                }
+            }
+        }
+        for ( Map.Entry<ArtifactKey, String> entry : artifacts.entrySet() )
+        {
+            Map<IProject, String> embedding = index.get( entry.getKey() );
+            if ( embedding == null )
+            {
+                embedding = new ConcurrentHashMap<IProject, String>();
+                index.put( entry.getKey(), embedding );
+            }
+            embedding.put( project, entry.getValue() );
+        }
+    }
+
+    synchronized void remove( IProject project )
+    {
+        Map<ArtifactKey, String> previous = projects.remove( project );
+        if ( previous != null )
+        {
+            for ( ArtifactKey artifact : previous.keySet() )
+            {
+                removeEntry( artifact, project );
+            }
+        }
+    }
+
+    private void removeEntry( ArtifactKey artifact, IProject project )
+    {
+        Map<IProject, String> embedding = index.get( artifact );
+        if ( embedding != null )
+        {
+            embedding.remove( project );
+            if ( embedding.isEmpty() )
+            {
+                index.remove( artifact );
+            }
+        }
+    }
+}
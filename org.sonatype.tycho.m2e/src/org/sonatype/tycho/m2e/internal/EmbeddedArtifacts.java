@@ -8,15 +8,23 @@
 
 package org.sonatype.tycho.m2e.internal;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.jar.Manifest;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.IPath;
 import org.eclipse.m2e.core.embedder.ArtifactKey;
-import org.eclipse.osgi.util.ManifestElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,45 +38,137 @@ public class EmbeddedArtifacts
      */
     private static final String EMBEDDED_ARTIFACTS = "Embedded-Artifacts";
 
+    private static class CachedArtifacts
+    {
+        final IFile manifest;
+
+        final long modificationStamp;
+
+        final Map<ArtifactKey, String> artifacts;
+
+        CachedArtifacts( IFile manifest, long modificationStamp, Map<ArtifactKey, String> artifacts )
+        {
+            this.manifest = manifest;
+            this.modificationStamp = modificationStamp;
+            this.artifacts = artifacts;
+        }
+    }
+
+    /**
+     * Parsed Embedded-Artifacts headers, validated by bundle manifest modification stamp.
+     */
+    private static final Map<IProject, CachedArtifacts> cache = new ConcurrentHashMap<IProject, CachedArtifacts>();
+
+    private static final IResourceChangeListener listener = new IResourceChangeListener()
+    {
+        @Override
+        public void resourceChanged( IResourceChangeEvent event )
+        {
+            IResourceDelta delta = event.getDelta();
+            if ( delta == null )
+            {
+                return;
+            }
+            // only look up cached manifest paths, never walk the whole delta
+            for ( CachedArtifacts cached : cache.values() )
+            {
+                IProject project = cached.manifest.getProject();
+                IResourceDelta projectDelta = delta.findMember( project.getFullPath() );
+                if ( projectDelta == null )
+                {
+                    continue;
+                }
+                if ( projectDelta.getKind() == IResourceDelta.REMOVED
+                    || ( projectDelta.getFlags() & IResourceDelta.OPEN ) != 0 )
+                {
+                    cache.remove( project, cached );
+                    EmbeddedArtifactIndex.getInstance().remove( project );
+                }
+                else if ( delta.findMember( cached.manifest.getFullPath() ) != null )
+                {
+                    // reverse index entries are validated against manifest stamp when looked up
+                    cache.remove( project, cached );
+                }
+            }
+        }
+    };
+
+    /**
+     * Resource change listener that evicts cached Embedded-Artifacts of changed and deleted bundle manifests and of
+     * removed, closed and opened projects, and drops removed, closed and opened projects from
+     * {@link EmbeddedArtifactIndex}.
+     */
+    public static IResourceChangeListener getResourceChangeListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Returns unmodifiable map of artifacts embedded in the bundle to their Bundle-ClassPath entries. The same map
+     * instance is returned while the bundle manifest does not change, and for all projects that do not embed any
+     * artifacts.
+     */
     public static Map<ArtifactKey, String> getEmbeddedArtifacts( IProject project )
+    {
+        IFile mfFile;
+        try
+        {
+            mfFile = PDEProjectHelper.getBundleManifest( project );
+        }
+        catch ( Exception e )
+        {
+            log.warn( "Count not read generated bundle manifest of project {}", project.getName(), e );
+            return Collections.emptyMap();
+        }
+
+        long stamp = mfFile != null ? mfFile.getModificationStamp() : IResource.NULL_STAMP;
+        CachedArtifacts cached = cache.get( project );
+        if ( cached != null && cached.manifest.equals( mfFile ) && cached.modificationStamp == stamp )
+        {
+            return cached.artifacts;
+        }
+
+        Map<ArtifactKey, String> artifacts = readEmbeddedArtifacts( project, mfFile );
+        // shared empty map keeps identity of Embedded-Artifacts stable for projects that do not embed anything
+        Map<ArtifactKey, String> result = Collections.emptyMap();
+        if ( !artifacts.isEmpty() )
+        {
+            result = Collections.unmodifiableMap( artifacts );
+        }
+        if ( mfFile != null )
+        {
+            cache.put( project, new CachedArtifacts( mfFile, stamp, result ) );
+        }
+        EmbeddedArtifactIndex.getInstance().update( project, result );
+        return result;
+    }
+
+    private static Map<ArtifactKey, String> readEmbeddedArtifacts( IProject project, IFile mfFile )
     {
         Map<ArtifactKey, String> result = new LinkedHashMap<ArtifactKey, String>();
 
         try
         {
-            IFile mfFile = PDEProjectHelper.getBundleManifest( project );
-
             if ( mfFile != null && mfFile.isAccessible() )
             {
-                Manifest mf;
-                try (InputStream is = mfFile.getContents())
+                String value;
+                IPath location = mfFile.getLocation();
+                if ( location != null )
                 {
-                    mf = new Manifest( is );
+                    value = ManifestHeaderScanner.readMainAttribute( location.toFile().toPath(), EMBEDDED_ARTIFACTS );
                 }
-
-                String value = mf.getMainAttributes().getValue( EMBEDDED_ARTIFACTS );
-
-                if ( value != null )
+                else
                 {
-                    for ( ManifestElement me : ManifestElement.parseHeader( EMBEDDED_ARTIFACTS, value ) )
+                    try (ReadableByteChannel channel = Channels.newChannel( mfFile.getContents() ))
                     {
-                        String path = me.getValue();
-                        String g = me.getAttribute( "g" );
-                        String a = me.getAttribute( "a" );
-                        String v = me.getAttribute( "v" );
-                        String c = me.getAttribute( "c" );
-
-                        if ( g != null && a != null && v != null && path != null )
-                        {
-                            result.put( new ArtifactKey( g, a, v, c ), path );
-                        }
-                        else
-                        {
-                            log.debug( "Malformd Include-Artifacts element paht={};g={};a={};v={};c={}", new Object[] {
-                                path, g, a, v, c } );
-                        }
+                        value = ManifestHeaderScanner.readMainAttribute( channel, EMBEDDED_ARTIFACTS );
                     }
                 }
+
+                if ( value != null )
+                {
+                    parseEmbeddedArtifacts( value, result );
+                }
             }
         }
         catch ( Exception e )
@@ -79,4 +179,137 @@ public class EmbeddedArtifacts
         return result;
     }
 
+    /**
+     * Reads Embedded-Artifacts header of the manifest file.
+     */
+    public static Map<ArtifactKey, String> readEmbeddedArtifacts( Path manifest )
+        throws IOException
+    {
+        Map<ArtifactKey, String> result = new LinkedHashMap<ArtifactKey, String>();
+        String value = ManifestHeaderScanner.readMainAttribute( manifest, EMBEDDED_ARTIFACTS );
+        if ( value != null )
+        {
+            parseEmbeddedArtifacts( value, result );
+        }
+        return result;
+    }
+
+    /**
+     * Parses {@code path;g="...";a="...";v="...";c="..."} elements in place, without splitting the header into
+     * intermediate element objects. Directives and unknown attributes are ignored.
+     */
+    private static void parseEmbeddedArtifacts( String header, Map<ArtifactKey, String> result )
+    {
+        int start = 0;
+        while ( start < header.length() )
+        {
+            int end = indexOfUnquoted( header, ',', start, header.length() );
+            parseEmbeddedArtifact( header, start, end, result );
+            start = end + 1;
+        }
+    }
+
+    private static void parseEmbeddedArtifact( String header, int start, int end, Map<ArtifactKey, String> result )
+    {
+        int separator = indexOfUnquoted( header, ';', start, end );
+        String path = unquote( header, start, separator );
+        String g = null;
+        String a = null;
+        String v = null;
+        String c = null;
+        while ( separator < end )
+        {
+            int from = separator + 1;
+            separator = indexOfUnquoted( header, ';', from, end );
+            int eq = header.indexOf( '=', from );
+            if ( eq < 0 || eq >= separator || header.charAt( eq - 1 ) == ':' )
+            {
+                // not an attribute or a directive
+                continue;
+            }
+            int nameStart = skipWhitespace( header, from, eq );
+            int nameEnd = eq;
+            while ( nameEnd > nameStart && Character.isWhitespace( header.charAt( nameEnd - 1 ) ) )
+            {
+                nameEnd--;
+            }
+            if ( nameEnd - nameStart != 1 )
+            {
+                continue;
+            }
+            switch ( header.charAt( nameStart ) )
+            {
+                case 'g':
+                    g = unquote( header, eq + 1, separator );
+                    break;
+                case 'a':
+                    a = unquote( header, eq + 1, separator );
+                    break;
+                case 'v':
+                    v = unquote( header, eq + 1, separator );
+                    break;
+                case 'c':
+                    c = unquote( header, eq + 1, separator );
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if ( g != null && a != null && v != null && path != null )
+        {
+            result.put( new ArtifactKey( g, a, v, c ), path );
+        }
+        else
+        {
+            log.debug( "Malformd Include-Artifacts element paht={};g={};a={};v={};c={}", new Object[] { path, g, a, v,
+                c } );
+        }
+    }
+
+    private static int indexOfUnquoted( String header, char ch, int start, int end )
+    {
+        boolean quoted = false;
+        for ( int i = start; i < end; i++ )
+        {
+            char current = header.charAt( i );
+            if ( current == '"' )
+            {
+                quoted = !quoted;
+            }
+            else if ( current == ch && !quoted )
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipWhitespace( String header, int start, int end )
+    {
+        while ( start < end && Character.isWhitespace( header.charAt( start ) ) )
+        {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return trimmed value with surrounding quotes removed, or {@code null} if the value is empty
+     */
+    private static String unquote( String header, int start, int end )
+    {
+        start = skipWhitespace( header, start, end );
+        while ( end > start && Character.isWhitespace( header.charAt( end - 1 ) ) )
+        {
+            end--;
+        }
+        if ( end - start >= 2 && header.charAt( start ) == '"' && header.charAt( end - 1 ) == '"' )
+        {
+            start++;
+            end--;
+        }
+        return end > start ? header.substring( start, end ) : null;
+    }
+
 }
@@ -8,10 +8,22 @@
 
 package org.sonatype.tycho.m2e.internal;
 
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Plugin;
+import org.eclipse.debug.core.DebugPlugin;
+import org.eclipse.m2e.core.MavenPlugin;
 import org.eclipse.pde.core.project.IBundleProjectService;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.ServiceReference;
+import org.sonatype.tycho.m2e.felix.internal.BndIncludeFileWatcher;
+import org.sonatype.tycho.m2e.felix.internal.ManifestRegenerationScheduler;
+import org.sonatype.tycho.m2e.internal.launching.PDEBundleClasspathPrefetcher;
+import org.sonatype.tycho.m2e.internal.launching.PDEBundleClasspathResolver;
 
 @SuppressWarnings( { "rawtypes", "unchecked" } )
 public class M2ETychoActivator
@@ -20,12 +32,31 @@ public class M2ETychoActivator
 
     public static final String PLUGIN_ID = "org.sonatype.tycho.m2e";
 
+    private static final String DEBUG_CORE = "org.eclipse.debug.core";
+
     private static M2ETychoActivator plugin;
 
     private ServiceReference projectServiceRef;
 
     private IBundleProjectService projectService;
 
+    /**
+     * {@link PDEBundleClasspathPrefetcher} is registered when debug.core starts, no launches are possible before.
+     */
+    private boolean launchListenerAdded;
+
+    private final BundleListener debugCoreListener = new BundleListener()
+    {
+        @Override
+        public void bundleChanged( BundleEvent event )
+        {
+            if ( event.getType() == BundleEvent.STARTED && DEBUG_CORE.equals( event.getBundle().getSymbolicName() ) )
+            {
+                addLaunchListener();
+            }
+        }
+    };
+
     public M2ETychoActivator()
     {
     }
@@ -40,11 +71,58 @@ public class M2ETychoActivator
 
         projectService = (IBundleProjectService) context.getService( projectServiceRef );
 
+        ResourcesPlugin.getWorkspace().addResourceChangeListener( EmbeddedArtifacts.getResourceChangeListener(),
+                                                                  IResourceChangeEvent.POST_CHANGE );
+        MavenPlugin.getMavenProjectRegistry().addMavenProjectChangedListener( PDEBundleClasspathResolver
+            .getMavenProjectChangedListener() );
+        MavenPlugin.getMavenProjectRegistry().addMavenProjectChangedListener( PDEClasspathContributor
+            .getMavenProjectChangedListener() );
+
+        // launches need debug.core, register launch listener once it is started instead of activating it here
+        context.addBundleListener( debugCoreListener );
+        Bundle debugCore = Platform.getBundle( DEBUG_CORE );
+        if ( debugCore != null && debugCore.getState() == Bundle.ACTIVE )
+        {
+            addLaunchListener();
+        }
+    }
+
+    private synchronized void addLaunchListener()
+    {
+        if ( !launchListenerAdded )
+        {
+            DebugPlugin.getDefault().getLaunchManager().addLaunchListener( PDEBundleClasspathPrefetcher.getInstance() );
+            launchListenerAdded = true;
+        }
+    }
+
+    private synchronized void removeLaunchListener()
+    {
+        if ( launchListenerAdded )
+        {
+            DebugPlugin debug = DebugPlugin.getDefault();
+            if ( debug != null )
+            {
+                debug.getLaunchManager().removeLaunchListener( PDEBundleClasspathPrefetcher.getInstance() );
+            }
+            PDEBundleClasspathPrefetcher.getInstance().dispose();
+            launchListenerAdded = false;
+        }
     }
 
     public void stop( BundleContext context )
         throws Exception
     {
+        ResourcesPlugin.getWorkspace().removeResourceChangeListener( EmbeddedArtifacts.getResourceChangeListener() );
+        MavenPlugin.getMavenProjectRegistry().removeMavenProjectChangedListener( PDEBundleClasspathResolver
+            .getMavenProjectChangedListener() );
+        MavenPlugin.getMavenProjectRegistry().removeMavenProjectChangedListener( PDEClasspathContributor
+            .getMavenProjectChangedListener() );
+        context.removeBundleListener( debugCoreListener );
+        removeLaunchListener();
+        BndIncludeFileWatcher.getInstance().dispose();
+        ManifestRegenerationScheduler.getInstance().dispose();
+
         context.ungetService( projectServiceRef );
         projectService = null;
         projectServiceRef = null;
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.sonatype.tycho.m2e.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads single main section attribute of a jar manifest without building {@link java.util.jar.Manifest}.
+ * <p>
+ * Manifest bytes are scanned line by line, only the requested attribute value and its continuation lines are decoded.
+ * Scanning stops as soon as the attribute value is complete or at the end of the main section.
+ */
+public class ManifestHeaderScanner
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] name;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+
+    private byte[] line = new byte[256];
+
+    private int length;
+
+    private byte[] value;
+
+    private int valueLength;
+
+    private ManifestHeaderScanner( String name )
+    {
+        this.name = name.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Returns value of the main section attribute, or {@code null} if the manifest does not have the attribute.
+     */
+    public static String readMainAttribute( Path manifest, String name )
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( manifest, StandardOpenOption.READ ))
+        {
+            return readMainAttribute( channel, name );
+        }
+    }
+
+    /**
+     * Returns value of the main section attribute, or {@code null} if the manifest does not have the attribute. Does
+     * not close the channel.
+     */
+    public static String readMainAttribute( ReadableByteChannel channel, String name )
+        throws IOException
+    {
+        return new ManifestHeaderScanner( name ).scan( channel );
+    }
+
+    private String scan( ReadableByteChannel channel )
+        throws IOException
+    {
+        boolean skipLF = false;
+        while ( channel.read( buffer ) >= 0 )
+        {
+            buffer.flip();
+            while ( buffer.hasRemaining() )
+            {
+                byte b = buffer.get();
+                if ( skipLF )
+                {
+                    skipLF = false;
+                    if ( b == '\n' )
+                    {
+                        continue;
+                    }
+                }
+                if ( b == '\r' || b == '\n' )
+                {
+                    skipLF = b == '\r';
+                    if ( endOfLine() )
+                    {
+                        return getValue();
+                    }
+                    continue;
+                }
+                if ( length == line.length )
+                {
+                    line = Arrays.copyOf( line, length * 2 );
+                }
+                line[length++] = b;
+            }
+            buffer.clear();
+        }
+        // manifest without trailing newline
+        if ( length > 0 )
+        {
+            endOfLine();
+        }
+        return getValue();
+    }
+
+    /**
+     * @return {@code true} if scanning is complete
+     */
+    private boolean endOfLine()
+    {
+        try
+        {
+            if ( length == 0 )
+            {
+                // end of main section
+                return true;
+            }
+            if ( line[0] == ' ' )
+            {
+                if ( value != null )
+                {
+                    append( 1 );
+                }
+                return false;
+            }
+            if ( value != null )
+            {
+                // new attribute after the requested one
+                return true;
+            }
+            if ( isRequestedAttribute() )
+            {
+                value = new byte[Math.max( 64, length * 2 )];
+                append( name.length + 2 );
+            }
+            return false;
+        }
+        finally
+        {
+            length = 0;
+        }
+    }
+
+    private boolean isRequestedAttribute()
+    {
+        if ( length < name.length + 2 || line[name.length] != ':' || line[name.length + 1] != ' ' )
+        {
+            return false;
+        }
+        for ( int i = 0; i < name.length; i++ )
+        {
+            // attribute names are case-insensitive ASCII
+            if ( Character.toLowerCase( line[i] ) != Character.toLowerCase( name[i] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append( int offset )
+    {
+        int count = length - offset;
+        if ( valueLength + count > value.length )
+        {
+            value = Arrays.copyOf( value, Math.max( value.length * 2, valueLength + count ) );
+        }
+        System.arraycopy( line, offset, value, valueLength, count );
+        valueLength += count;
+    }
+
+    private String getValue()
+    {
+        return value != null ? new String( value, 0, valueLength, StandardCharsets.UTF_8 ) : null;
+    }
+}
@@ -9,16 +9,23 @@
 package org.sonatype.tycho.m2e.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.jdt.core.IAccessRule;
@@ -29,13 +36,16 @@ import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.m2e.core.MavenPlugin;
 import org.eclipse.m2e.core.embedder.ArtifactKey;
+import org.eclipse.m2e.core.project.IMavenProjectChangedListener;
 import org.eclipse.m2e.core.project.IMavenProjectFacade;
 import org.eclipse.m2e.core.project.IMavenProjectRegistry;
+import org.eclipse.m2e.core.project.MavenProjectChangedEvent;
 import org.eclipse.m2e.jdt.IClasspathEntryDescriptor;
 import org.eclipse.m2e.jdt.IClasspathManager;
 import org.eclipse.m2e.jdt.internal.ClasspathEntryDescriptor;
 import org.eclipse.osgi.service.resolver.BundleDescription;
 import org.eclipse.osgi.service.resolver.ExportPackageDescription;
+import org.eclipse.osgi.service.resolver.State;
 import org.eclipse.osgi.service.resolver.StateHelper;
 import org.eclipse.pde.core.IClasspathContributor;
 import org.eclipse.pde.core.plugin.IPluginModelBase;
@@ -48,15 +58,215 @@ public class PDEClasspathContributor
 
     private static final IMavenProjectRegistry mavenProjects = MavenPlugin.getMavenProjectRegistry();
 
+    /**
+     * bundle -> exporter -> visible package rules, valid for {@link #visiblePackagesState} and
+     * {@link #visiblePackagesTimestamp} only
+     */
+    private static final Map<BundleDescription, Map<BundleDescription, Set<Rule>>> visiblePackagesCache =
+        new HashMap<BundleDescription, Map<BundleDescription, Set<Rule>>>();
+
+    private static State visiblePackagesState;
+
+    private static long visiblePackagesTimestamp;
+
+    private static final List<IAccessRule> NO_ACCESS_RULES = Collections.emptyList();
+
+    /**
+     * Decoded maven classpath container of a project and the entries contributed to dependent bundles, per access rule
+     * list. Access rule lists are interned, see {@link #getAccessRules(Collection)}, entries are only kept for the
+     * access rule lists of the current visible packages state, so there is at most one entry per dependent bundle.
+     */
+    private static class MavenClasspath
+    {
+        final IClasspathContainer container;
+
+        final Map<ArtifactKey, String> embeddedArtifacts;
+
+        final Map<ArtifactKey, IClasspathEntryDescriptor> descriptors;
+
+        private long entriesGeneration = -1;
+
+        private Map<List<IAccessRule>, List<IClasspathEntry>> entries;
+
+        MavenClasspath( IClasspathContainer container, Map<ArtifactKey, String> embeddedArtifacts,
+                        Map<ArtifactKey, IClasspathEntryDescriptor> descriptors )
+        {
+            this.container = container;
+            this.embeddedArtifacts = embeddedArtifacts;
+            this.descriptors = descriptors;
+        }
+
+        /**
+         * Returns contributed entries per access rule list, discards entries of rule lists interned before the given
+         * {@link #accessRulesGeneration}.
+         */
+        synchronized Map<List<IAccessRule>, List<IClasspathEntry>> getEntries( long generation )
+        {
+            if ( entries == null || entriesGeneration != generation )
+            {
+                entries = new ConcurrentHashMap<List<IAccessRule>, List<IClasspathEntry>>();
+                entriesGeneration = generation;
+            }
+            return entries;
+        }
+    }
+
+    private static final MavenClasspath NO_CLASSPATH =
+        new MavenClasspath( null, Collections.<ArtifactKey, String> emptyMap(),
+                            Collections.<ArtifactKey, IClasspathEntryDescriptor> emptyMap() );
+
+    private static final Map<IProject, MavenClasspath> mavenClasspaths =
+        new ConcurrentHashMap<IProject, MavenClasspath>();
+
+    private static final IMavenProjectChangedListener listener = new IMavenProjectChangedListener()
+    {
+        @Override
+        public void mavenProjectChanged( List<MavenProjectChangedEvent> events, IProgressMonitor monitor )
+        {
+            for ( MavenProjectChangedEvent event : events )
+            {
+                if ( MavenProjectChangedEvent.KIND_REMOVED == event.getKind() )
+                {
+                    mavenClasspaths.remove( event.getSource().getProject() );
+                }
+                // classpath of bundles that embed the changed project refers to it
+                for ( IProject embedding : EmbeddedArtifactIndex.getInstance().getEmbeddingProjects( event ) )
+                {
+                    mavenClasspaths.remove( embedding );
+                }
+            }
+            // maven facades and classpath containers of batch bundles may have changed
+            generation.incrementAndGet();
+        }
+    };
+
+    /**
+     * Set to {@code false} to look up dependency projects for every dependency edge instead of once per resolver
+     * state.
+     */
+    public static final String PROP_BATCH = "m2e.tycho.classpath.batch";
+
+    private static class MavenBundle
+    {
+        final IProject project;
+
+        final IJavaProject javaProject;
+
+        MavenBundle( IProject project, IJavaProject javaProject )
+        {
+            this.project = project;
+            this.javaProject = javaProject;
+        }
+    }
+
+    private static final MavenBundle NOT_MAVEN_BUNDLE = new MavenBundle( null, null );
+
+    /**
+     * Workspace bundles of a resolver state. PDE computes classpath of all bundles against the same state, workspace
+     * models, maven facades and java projects are looked up once for all dependency edges. Entries contributed for each
+     * dependency edge are computed once per batch and dependency maven classpath, see {@link ContributedEntries}.
+     * <p>
+     * A batch is valid for one resolver state timestamp and maven project change {@link #generation}, bundle manifest
+     * changes change the resolver state and maven project changes, including classpath changes, the generation.
+     */
+    private static class Batch
+    {
+        final State state;
+
+        final long timestamp;
+
+        final long generation;
+
+        final Map<BundleDescription, MavenBundle> bundles;
+
+        /**
+         * bundle -> dependency -> contributed entries
+         */
+        final Map<BundleDescription, Map<BundleDescription, ContributedEntries>> entries =
+            new ConcurrentHashMap<BundleDescription, Map<BundleDescription, ContributedEntries>>();
+
+        Batch( State state, long timestamp, long generation, Map<BundleDescription, MavenBundle> bundles )
+        {
+            this.state = state;
+            this.timestamp = timestamp;
+            this.generation = generation;
+            this.bundles = bundles;
+        }
+
+        boolean isCurrent( State state )
+        {
+            return this.state == state && timestamp == state.getTimeStamp()
+                && generation == PDEClasspathContributor.generation.get();
+        }
+    }
+
+    /**
+     * Entries contributed for a dependency edge and the maven classpath they were computed from. m2e replaces classpath
+     * containers in response to the same maven project changes that invalidate the batch, possibly after the batch was
+     * computed, memoized entries are only reused while the dependency has the same maven classpath.
+     */
+    private static class ContributedEntries
+    {
+        final MavenClasspath classpath;
+
+        final List<IClasspathEntry> entries;
+
+        ContributedEntries( MavenClasspath classpath, List<IClasspathEntry> entries )
+        {
+            this.classpath = classpath;
+            this.entries = entries;
+        }
+    }
+
+    private static final AtomicReference<Batch> batch = new AtomicReference<Batch>();
+
+    /**
+     * Incremented on every maven project change.
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
     @Override
     public List<IClasspathEntry> getInitialEntries( BundleDescription bundle )
     {
+        if ( isBatch() && getBatch( bundle.getContainingState() ) != null )
+        {
+            // entries for all dependencies of the bundle are requested next
+            getVisiblePackages( bundle );
+        }
         return Collections.emptyList();
     }
 
     @Override
     public List<IClasspathEntry> getEntriesForDependency( BundleDescription bundle, BundleDescription addedDependency )
     {
+        if ( isBatch() )
+        {
+            Batch current = getBatch( addedDependency.getContainingState() );
+            if ( current != null )
+            {
+                MavenBundle mavenBundle = current.bundles.get( addedDependency );
+                if ( mavenBundle == NOT_MAVEN_BUNDLE )
+                {
+                    return Collections.emptyList();
+                }
+                if ( mavenBundle != null )
+                {
+                    MavenClasspath classpath = getMavenClasspath( mavenBundle.project, mavenBundle.javaProject );
+                    Map<BundleDescription, ContributedEntries> dependencies =
+                        current.entries.computeIfAbsent( bundle, b -> new ConcurrentHashMap<>() );
+                    ContributedEntries contributed = dependencies.get( addedDependency );
+                    if ( contributed == null || contributed.classpath != classpath )
+                    {
+                        contributed =
+                            new ContributedEntries( classpath, getEntries( bundle, addedDependency, classpath ) );
+                        dependencies.put( addedDependency, contributed );
+                    }
+                    return new ArrayList<>( contributed.entries );
+                }
+                // not a workspace bundle, or the workspace model refers to other resolver state
+            }
+        }
+
         IPluginModelBase model = PluginRegistry.findModel( addedDependency );
 
         IProject project = getProject( model );
@@ -80,26 +290,104 @@ public class PDEClasspathContributor
             return Collections.emptyList();
         }
 
+        return getEntries( bundle, addedDependency, getMavenClasspath( project, javaProject ) );
+    }
+
+    private List<IClasspathEntry> getEntries( BundleDescription bundle, BundleDescription addedDependency,
+                                              MavenClasspath classpath )
+    {
+        if ( classpath.descriptors.isEmpty() )
+        {
+            return new ArrayList<>();
+        }
+
         List<IAccessRule> accessRules = getAccessRules( bundle, addedDependency );
 
-        Map<ArtifactKey, String> embeddedArtifacts = EmbeddedArtifacts.getEmbeddedArtifacts( project );
+        List<IClasspathEntry> entries = classpath.getEntries( accessRulesGeneration.get() )
+            .computeIfAbsent( accessRules != null ? accessRules : NO_ACCESS_RULES, rules -> {
+                List<IClasspathEntry> result = new ArrayList<>();
+                for ( Map.Entry<ArtifactKey, IClasspathEntryDescriptor> entry : classpath.descriptors.entrySet() )
+                {
+                    if ( classpath.embeddedArtifacts.containsKey( entry.getKey() ) )
+                    {
+                        result.add( newClasspathEntry( entry.getValue(), rules ) );
+                    }
+                }
+                return result;
+            } );
+
+        return new ArrayList<>( entries );
+    }
 
-        List<IClasspathEntry> entries = new ArrayList<>();
+    /**
+     * Maven project change listener that evicts cached maven classpath of removed projects, including closed and
+     * deleted projects, and of bundles that embed changed projects, and invalidates the current batch on any maven
+     * project change.
+     */
+    public static IMavenProjectChangedListener getMavenProjectChangedListener()
+    {
+        return listener;
+    }
 
-        for ( Map.Entry<ArtifactKey, IClasspathEntryDescriptor> entry : getMavenClasspath( javaProject ).entrySet() )
+    static boolean isBatch()
+    {
+        return !"false".equalsIgnoreCase( System.getProperty( PROP_BATCH ) );
+    }
+
+    /**
+     * Returns workspace bundles of the resolver state, looks them up when the state or maven projects changed since the
+     * last batch. Concurrent callers may compute the same batch, the batch is computed without holding a lock and only
+     * one is published.
+     */
+    private Batch getBatch( State state )
+    {
+        if ( state == null )
         {
-            if ( embeddedArtifacts.containsKey( entry.getKey() ) )
+            return null;
+        }
+        Batch current = batch.get();
+        if ( current != null && current.isCurrent( state ) )
+        {
+            return current;
+        }
+        // read before the lookup, changes during the lookup make the new batch stale right away
+        long currentGeneration = generation.get();
+        long timestamp = state.getTimeStamp();
+        Batch computed = new Batch( state, timestamp, currentGeneration, getWorkspaceBundles( state ) );
+        if ( batch.compareAndSet( current, computed ) )
+        {
+            return computed;
+        }
+        Batch published = batch.get();
+        return published != null && published.isCurrent( state ) ? published : computed;
+    }
+
+    private Map<BundleDescription, MavenBundle> getWorkspaceBundles( State state )
+    {
+        Map<BundleDescription, MavenBundle> bundles = new HashMap<BundleDescription, MavenBundle>();
+        for ( IPluginModelBase model : PluginRegistry.getWorkspaceModels() )
+        {
+            BundleDescription description = model.getBundleDescription();
+            IProject project = getProject( model );
+            if ( description == null || description.getContainingState() != state || project == null )
+            {
+                continue;
+            }
+            IJavaProject javaProject = JavaCore.create( project );
+            if ( mavenProjects.getProject( project ) == null || javaProject == null )
             {
-                entries.add( newClasspathEntry( entry.getValue(), accessRules ) );
+                bundles.put( description, NOT_MAVEN_BUNDLE );
+                continue;
             }
+            // maven classpath is decoded when the bundle is first requested as a dependency
+            bundles.put( description, new MavenBundle( project, javaProject ) );
         }
-
-        return entries;
+        return bundles;
     }
 
     private List<IAccessRule> getAccessRules( BundleDescription bundle, BundleDescription addedDependency )
     {
-        Map<BundleDescription, ArrayList<Rule>> map = retrieveVisiblePackagesFromState( bundle );
+        Map<BundleDescription, Set<Rule>> map = getVisiblePackages( bundle );
         if ( map != null )
         {
             return getAccessRules( map.get( addedDependency ) );
@@ -107,6 +395,38 @@ public class PDEClasspathContributor
         return null;
     }
 
+    /**
+     * PDE asks for entries of each bundle dependency separately, visible packages of the bundle are computed once and
+     * reused until the resolver state changes.
+     */
+    private Map<BundleDescription, Set<Rule>> getVisiblePackages( BundleDescription bundle )
+    {
+        State state = bundle.getContainingState();
+        if ( state == null )
+        {
+            return retrieveVisiblePackagesFromState( bundle );
+        }
+        synchronized ( visiblePackagesCache )
+        {
+            if ( state != visiblePackagesState || state.getTimeStamp() != visiblePackagesTimestamp )
+            {
+                visiblePackagesCache.clear();
+                // lists of packages that are no longer visible would never be looked up again
+                accessRuleLists.clear();
+                accessRulesGeneration.incrementAndGet();
+                visiblePackagesState = state;
+                visiblePackagesTimestamp = state.getTimeStamp();
+            }
+            Map<BundleDescription, Set<Rule>> visiblePackages = visiblePackagesCache.get( bundle );
+            if ( visiblePackages == null )
+            {
+                visiblePackages = retrieveVisiblePackagesFromState( bundle );
+                visiblePackagesCache.put( bundle, visiblePackages );
+            }
+            return visiblePackages;
+        }
+    }
+
     private IClasspathEntry newClasspathEntry( IClasspathEntryDescriptor prototype, Collection<IAccessRule> rules )
     {
         IClasspathEntryDescriptor entry = new ClasspathEntryDescriptor( prototype.getEntryKind(), prototype.getPath() );
@@ -121,26 +441,25 @@ public class PDEClasspathContributor
         return entry.toClasspathEntry();
     }
 
-    private Map<ArtifactKey, IClasspathEntryDescriptor> getMavenClasspath( IJavaProject javaProject )
+    /**
+     * Returns decoded maven classpath container of the project. Cached value is reused while the project has the same
+     * container instance, m2e sets new container whenever project classpath changes, and the same embedded
+     * artifacts. Projects that do not embed any artifacts, including projects without bundle manifest, contribute
+     * nothing and are not cached.
+     */
+    private MavenClasspath getMavenClasspath( IProject project, IJavaProject javaProject )
     {
+        Map<ArtifactKey, String> embeddedArtifacts = EmbeddedArtifacts.getEmbeddedArtifacts( project );
+        if ( embeddedArtifacts.isEmpty() )
+        {
+            mavenClasspaths.remove( project );
+            return NO_CLASSPATH;
+        }
+
+        IClasspathContainer container = null;
         try
         {
-            IClasspathContainer container =
-                JavaCore.getClasspathContainer( new Path( IClasspathManager.CONTAINER_ID ), javaProject );
-            if ( container != null )
-            {
-                Map<ArtifactKey, IClasspathEntryDescriptor> result = new LinkedHashMap<>();
-                for ( IClasspathEntry entry : container.getClasspathEntries() )
-                {
-                    ClasspathEntryDescriptor descriptor = new ClasspathEntryDescriptor( entry );
-                    ArtifactKey key = descriptor.getArtifactKey();
-                    if ( key != null )
-                    {
-                        result.put( key, descriptor );
-                    }
-                }
-                return result;
-            }
+            container = JavaCore.getClasspathContainer( new Path( IClasspathManager.CONTAINER_ID ), javaProject );
         }
         catch ( JavaModelException e )
         {
@@ -148,7 +467,36 @@ public class PDEClasspathContributor
             e.printStackTrace();
         }
 
-        return Collections.emptyMap();
+        MavenClasspath cached = mavenClasspaths.get( project );
+        if ( cached != null && cached.container == container && cached.embeddedArtifacts == embeddedArtifacts )
+        {
+            return cached;
+        }
+
+        Map<ArtifactKey, IClasspathEntryDescriptor> descriptors =
+            cached != null && cached.container == container ? cached.descriptors : getMavenClasspath( container );
+        MavenClasspath classpath = new MavenClasspath( container, embeddedArtifacts, descriptors );
+        mavenClasspaths.put( project, classpath );
+        return classpath;
+    }
+
+    private Map<ArtifactKey, IClasspathEntryDescriptor> getMavenClasspath( IClasspathContainer container )
+    {
+        if ( container == null )
+        {
+            return Collections.emptyMap();
+        }
+        Map<ArtifactKey, IClasspathEntryDescriptor> result = new LinkedHashMap<>();
+        for ( IClasspathEntry entry : container.getClasspathEntries() )
+        {
+            ClasspathEntryDescriptor descriptor = new ClasspathEntryDescriptor( entry );
+            ArtifactKey key = descriptor.getArtifactKey();
+            if ( key != null )
+            {
+                result.put( key, descriptor );
+            }
+        }
+        return result;
     }
 
     private IProject getProject( IPluginModelBase model )
@@ -166,11 +514,41 @@ public class PDEClasspathContributor
     private static final IAccessRule EXCLUDE_ALL_RULE =
         JavaCore.newAccessRule( new Path( "**/*" ), IAccessRule.K_NON_ACCESSIBLE | IAccessRule.IGNORE_IF_BETTER ); //$NON-NLS-1$
 
-    public class Rule
+    /**
+     * Interned rules, package name -> rule, one table per access kind. Identical package paths and access kinds share
+     * one {@link Rule} and one {@link IAccessRule}.
+     */
+    private static final Map<String, Rule> accessibleRules = new ConcurrentHashMap<String, Rule>();
+
+    private static final Map<String, Rule> discouragedRules = new ConcurrentHashMap<String, Rule>();
+
+    /**
+     * Interned per-exporter access rule lists, bundles that see the same packages of an exporter share one list.
+     * Cleared together with {@link #visiblePackagesCache}.
+     */
+    private static final Map<List<Rule>, List<IAccessRule>> accessRuleLists =
+        new ConcurrentHashMap<List<Rule>, List<IAccessRule>>();
+
+    /**
+     * Incremented whenever {@link #accessRuleLists} is cleared.
+     */
+    private static final AtomicLong accessRulesGeneration = new AtomicLong();
+
+    public static class Rule
     {
-        IPath path;
+        final IPath path;
 
-        boolean discouraged;
+        final boolean discouraged;
+
+        final IAccessRule accessRule;
+
+        Rule( IPath path, boolean discouraged )
+        {
+            this.path = path;
+            this.discouraged = discouraged;
+            this.accessRule =
+                JavaCore.newAccessRule( path, discouraged ? IAccessRule.K_DISCOURAGED : IAccessRule.K_ACCESSIBLE );
+        }
 
         public boolean equals( Object other )
         {
@@ -179,15 +557,20 @@ public class PDEClasspathContributor
             return discouraged == ( (Rule) other ).discouraged && path.equals( ( (Rule) other ).path );
         }
 
+        public int hashCode()
+        {
+            return path.hashCode() * 31 + ( discouraged ? 1 : 0 );
+        }
+
         public String toString()
         {
             return discouraged ? path.toString() + " [discouraged]" : path.toString(); //$NON-NLS-1$
         }
     }
 
-    private Map<BundleDescription, ArrayList<Rule>> retrieveVisiblePackagesFromState( BundleDescription desc )
+    private Map<BundleDescription, Set<Rule>> retrieveVisiblePackagesFromState( BundleDescription desc )
     {
-        Map<BundleDescription, ArrayList<Rule>> visiblePackages = new HashMap<BundleDescription, ArrayList<Rule>>();
+        Map<BundleDescription, Set<Rule>> visiblePackages = new HashMap<BundleDescription, Set<Rule>>();
         StateHelper helper = Platform.getPlatformAdmin().getStateHelper();
         addVisiblePackagesFromState( helper, desc, visiblePackages );
         if ( desc.getHost() != null )
@@ -196,7 +579,7 @@ public class PDEClasspathContributor
     }
 
     private void addVisiblePackagesFromState( StateHelper helper, BundleDescription desc,
-                                              Map<BundleDescription, ArrayList<Rule>> visiblePackages )
+                                              Map<BundleDescription, Set<Rule>> visiblePackages )
     {
         if ( desc == null )
             return;
@@ -206,50 +589,47 @@ public class PDEClasspathContributor
             BundleDescription exporter = exports[i].getExporter();
             if ( exporter == null )
                 continue;
-            ArrayList<Rule> list = visiblePackages.get( exporter );
-            if ( list == null )
+            Set<Rule> rules = visiblePackages.get( exporter );
+            if ( rules == null )
             {
-                list = new ArrayList<Rule>();
-                visiblePackages.put( exporter, list );
+                rules = new LinkedHashSet<Rule>();
+                visiblePackages.put( exporter, rules );
             }
-            Rule rule = getRule( helper, desc, exports[i] );
-            if ( !list.contains( rule ) )
-                list.add( rule );
+            rules.add( getRule( helper, desc, exports[i] ) );
         }
     }
 
-    private Rule getRule( StateHelper helper, BundleDescription desc, ExportPackageDescription export )
+    private static Rule getRule( StateHelper helper, BundleDescription desc, ExportPackageDescription export )
+    {
+        final boolean discouraged = helper.getAccessCode( desc, export ) == StateHelper.ACCESS_DISCOURAGED;
+        Map<String, Rule> rules = discouraged ? discouragedRules : accessibleRules;
+        return rules.computeIfAbsent( export.getName(), name -> new Rule( getRulePath( name ), discouraged ) );
+    }
+
+    private static IPath getRulePath( String packageName )
     {
-        Rule rule = new Rule();
-        rule.discouraged = helper.getAccessCode( desc, export ) == StateHelper.ACCESS_DISCOURAGED;
-        String name = export.getName();
-        rule.path = ( name.equals( "." ) ) ? new Path( "*" ) : new Path( name.replaceAll( "\\.", "/" ) + "/*" );
-        return rule;
+        return ( packageName.equals( "." ) ) ? new Path( "*" ) : new Path( packageName.replace( '.', '/' ) + "/*" );
     }
 
+    /**
+     * Returns unmodifiable, interned list of access rules for the given visible package rules.
+     */
     protected static List<IAccessRule> getAccessRules( Collection<Rule> rules )
     {
         if ( rules == null )
         {
             return null;
         }
-        List<IAccessRule> accessRules = new ArrayList<>();
-        for ( Rule rule : rules )
-        {
-            accessRules.add( rule.discouraged ? getDiscouragedRule( rule.path ) : getAccessibleRule( rule.path ) );
-        }
-        accessRules.add( EXCLUDE_ALL_RULE );
-        return accessRules;
-    }
-
-    private static synchronized IAccessRule getAccessibleRule( IPath path )
-    {
-        return JavaCore.newAccessRule( path, IAccessRule.K_ACCESSIBLE );
-    }
-
-    private static synchronized IAccessRule getDiscouragedRule( IPath path )
-    {
-        return JavaCore.newAccessRule( path, IAccessRule.K_DISCOURAGED );
+        return accessRuleLists.computeIfAbsent( new ArrayList<Rule>( rules ), key -> {
+            IAccessRule[] accessRules = new IAccessRule[key.size() + 1];
+            int i = 0;
+            for ( Rule rule : key )
+            {
+                accessRules[i++] = rule.accessRule;
+            }
+            accessRules[i] = EXCLUDE_ALL_RULE;
+            return Collections.unmodifiableList( Arrays.asList( accessRules ) );
+        } );
     }
 
 }
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.internal;
+
+import org.eclipse.core.runtime.Platform;
+import org.slf4j.Logger;
+
+/**
+ * Debug trace options, see {@code .options} file in bundle root.
+ * <p>
+ * Traced messages are logged with info level when the option is enabled and with debug level otherwise.
+ */
+public class Tracing
+{
+    public static final String MANIFEST = M2ETychoActivator.PLUGIN_ID + "/debug/manifest";
+
+    public static final String LAUNCH = M2ETychoActivator.PLUGIN_ID + "/debug/launch";
+
+    private Tracing()
+    {
+    }
+
+    public static boolean isEnabled( String option )
+    {
+        return Platform.isRunning() && "true".equalsIgnoreCase( Platform.getDebugOption( option ) );
+    }
+
+    public static void trace( Logger log, String option, String format, Object... arguments )
+    {
+        if ( isEnabled( option ) )
+        {
+            log.info( format, arguments );
+        }
+        else
+        {
+            log.debug( format, arguments );
+        }
+    }
+}
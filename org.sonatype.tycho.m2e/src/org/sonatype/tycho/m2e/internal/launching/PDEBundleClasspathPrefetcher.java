@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.sonatype.tycho.m2e.internal.launching;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobGroup;
+import org.eclipse.debug.core.ILaunch;
+import org.eclipse.debug.core.ILaunchConfiguration;
+import org.eclipse.debug.core.ILaunchListener;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.m2e.core.MavenPlugin;
+import org.eclipse.pde.core.plugin.IPluginModelBase;
+import org.eclipse.pde.core.plugin.PluginRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.tycho.m2e.internal.Tracing;
+
+/**
+ * Resolves runtime classpath of maven workspace bundles of a PDE launch concurrently, as soon as the launch is added
+ * and before PDE asks {@link PDEBundleClasspathResolver} for bundles one by one. Resolved classpath is memoized by
+ * the resolver, PDE asking for a bundle that is still being prefetched waits for the prefetch to finish.
+ * <p>
+ * Bundles are resolved on a pool of at most {@link #PROP_THREADS} worker jobs. The work is cancelled when the launch
+ * is removed, which is also what happens when the launch is cancelled, or once the launch has started its processes.
+ * Cancellation skips bundles that were not resolved yet, the job monitor is passed to m2e but bundles already being
+ * resolved by m2e are not necessarily interrupted, their results are discarded.
+ */
+public class PDEBundleClasspathPrefetcher
+    implements ILaunchListener
+{
+    private static final Logger log = LoggerFactory.getLogger( PDEBundleClasspathPrefetcher.class );
+
+    private static final PDEBundleClasspathPrefetcher INSTANCE = new PDEBundleClasspathPrefetcher();
+
+    /**
+     * Maximum number of bundles resolved concurrently, defaults to the number of processors. Values less than 2
+     * disable prefetching.
+     */
+    public static final String PROP_THREADS = "m2e.tycho.launch.threads";
+
+    private static final String PDE_LAUNCH_TYPE_PREFIX = "org.eclipse.pde.";
+
+    // see org.eclipse.pde.launching.IPDELauncherConstants
+
+    private static final String USE_DEFAULT = "default";
+
+    private static final String AUTOMATIC_ADD = "automaticAdd";
+
+    private static final String SELECTED_WORKSPACE_BUNDLES = "selected_workspace_bundles";
+
+    private final Map<ILaunch, JobGroup> groups = new ConcurrentHashMap<ILaunch, JobGroup>();
+
+    private PDEBundleClasspathPrefetcher()
+    {
+    }
+
+    public static PDEBundleClasspathPrefetcher getInstance()
+    {
+        return INSTANCE;
+    }
+
+    static int getThreads()
+    {
+        try
+        {
+            String threads = System.getProperty( PROP_THREADS );
+            return threads != null ? Integer.parseInt( threads ) : Runtime.getRuntime().availableProcessors();
+        }
+        catch ( NumberFormatException e )
+        {
+            return 1;
+        }
+    }
+
+    @Override
+    public void launchAdded( ILaunch launch )
+    {
+        int threads = getThreads();
+        ILaunchConfiguration configuration = launch.getLaunchConfiguration();
+        if ( threads < 2 || configuration == null )
+        {
+            return;
+        }
+
+        Set<IJavaProject> projects;
+        try
+        {
+            if ( !configuration.getType().getIdentifier().startsWith( PDE_LAUNCH_TYPE_PREFIX ) )
+            {
+                return;
+            }
+            projects = getMavenBundles( configuration );
+        }
+        catch ( CoreException e )
+        {
+            log.debug( "Could not read launch configuration {}", configuration.getName(), e );
+            return;
+        }
+        if ( projects.isEmpty() )
+        {
+            return;
+        }
+
+        Tracing.trace( log, Tracing.LAUNCH, "Resolving classpath of {} bundles of launch {}, {} threads",
+                       projects.size(), configuration.getName(), threads );
+        JobGroup group = new JobGroup( "Resolving bundle classpath", threads, projects.size() );
+        groups.put( launch, group );
+        for ( IJavaProject project : projects )
+        {
+            PrefetchJob job = new PrefetchJob( project );
+            job.setJobGroup( group );
+            job.schedule();
+        }
+    }
+
+    @Override
+    public void launchChanged( ILaunch launch )
+    {
+        if ( launch.getProcesses().length > 0 )
+        {
+            // PDE is done with bundle classpath once the launch is running
+            cancel( launch );
+        }
+    }
+
+    @Override
+    public void launchRemoved( ILaunch launch )
+    {
+        cancel( launch );
+    }
+
+    private void cancel( ILaunch launch )
+    {
+        JobGroup group = groups.remove( launch );
+        if ( group != null )
+        {
+            group.cancel();
+        }
+    }
+
+    public void dispose()
+    {
+        for ( ILaunch launch : groups.keySet() )
+        {
+            cancel( launch );
+        }
+    }
+
+    /**
+     * Returns maven workspace bundles included in the launch. All maven workspace bundles are returned when the launch
+     * includes all or automatically added workspace bundles.
+     */
+    private Set<IJavaProject> getMavenBundles( ILaunchConfiguration configuration )
+        throws CoreException
+    {
+        Set<String> selected = null;
+        if ( !configuration.getAttribute( USE_DEFAULT, true ) && !configuration.getAttribute( AUTOMATIC_ADD, true ) )
+        {
+            selected = configuration.getAttribute( SELECTED_WORKSPACE_BUNDLES, (Set<String>) null );
+        }
+
+        Set<IJavaProject> projects = new LinkedHashSet<IJavaProject>();
+        if ( selected == null )
+        {
+            for ( IPluginModelBase model : PluginRegistry.getWorkspaceModels() )
+            {
+                addMavenBundle( projects, model );
+            }
+        }
+        else
+        {
+            for ( String bundle : selected )
+            {
+                // symbolicName[*version][@startLevel:autoStart]
+                String id = bundle.split( "[*@]", 2 )[0];
+                addMavenBundle( projects, PluginRegistry.findModel( id ) );
+            }
+        }
+        return projects;
+    }
+
+    private static void addMavenBundle( Set<IJavaProject> projects, IPluginModelBase model )
+    {
+        IResource resource = model != null ? model.getUnderlyingResource() : null;
+        if ( resource == null )
+        {
+            return; // not a workspace plugin
+        }
+        IProject project = resource.getProject();
+        if ( project.isAccessible() && MavenPlugin.getMavenProjectRegistry().getProject( project ) != null )
+        {
+            projects.add( JavaCore.create( project ) );
+        }
+    }
+
+    private class PrefetchJob
+        extends Job
+    {
+        private final IJavaProject project;
+
+        PrefetchJob( IJavaProject project )
+        {
+            super( "Resolving classpath of " + project.getElementName() );
+            this.project = project;
+            setSystem( true );
+        }
+
+        @Override
+        protected IStatus run( IProgressMonitor monitor )
+        {
+            if ( monitor.isCanceled() )
+            {
+                return Status.CANCEL_STATUS;
+            }
+            try
+            {
+                new PDEBundleClasspathResolver().prefetch( project, monitor );
+            }
+            catch ( OperationCanceledException e )
+            {
+                return Status.CANCEL_STATUS;
+            }
+            return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+        }
+    }
+}
@@ -14,7 +14,14 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
@@ -32,7 +39,9 @@ import org.eclipse.jdt.launching.IRuntimeClasspathEntry;
 import org.eclipse.jdt.launching.JavaRuntime;
 import org.eclipse.m2e.core.MavenPlugin;
 import org.eclipse.m2e.core.embedder.ArtifactKey;
+import org.eclipse.m2e.core.project.IMavenProjectChangedListener;
 import org.eclipse.m2e.core.project.IMavenProjectFacade;
+import org.eclipse.m2e.core.project.MavenProjectChangedEvent;
 import org.eclipse.m2e.jdt.IClasspathEntryDescriptor;
 import org.eclipse.m2e.jdt.IClasspathManager;
 import org.eclipse.m2e.jdt.MavenJdtPlugin;
@@ -40,7 +49,9 @@ import org.eclipse.m2e.jdt.internal.ClasspathEntryDescriptor;
 import org.eclipse.pde.core.IBundleClasspathResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonatype.tycho.m2e.internal.EmbeddedArtifactIndex;
 import org.sonatype.tycho.m2e.internal.EmbeddedArtifacts;
+import org.sonatype.tycho.m2e.internal.Tracing;
 
 @SuppressWarnings( "restriction" )
 public class PDEBundleClasspathResolver
@@ -51,31 +62,127 @@ public class PDEBundleClasspathResolver
     // no test dependencies in OSGi runtime
     private static final int CLASSPATH_SCOPE = IClasspathManager.CLASSPATH_RUNTIME;
 
-    private static final IClasspathManager buildpathManager = MavenJdtPlugin.getDefault().getBuildpathManager();
+    /**
+     * How long callers wait for a running resolution before they check their monitor again.
+     */
+    private static final long WAIT_MILLIS = 100L;
+
+    /**
+     * Maven runtime classpath entry embedded in the bundle.
+     */
+    private static class BundleEntry
+    {
+        final IClasspathEntryDescriptor entry;
+
+        final String bundlePath;
+
+        BundleEntry( IClasspathEntryDescriptor entry, String bundlePath )
+        {
+            this.entry = entry;
+            this.bundlePath = bundlePath;
+        }
+    }
+
+    /**
+     * Resolved maven runtime classpath entries embedded in a bundle, valid while the bundle has the same
+     * Embedded-Artifacts and until the maven project changes.
+     */
+    private static class ResolvedClasspath
+    {
+        final Map<ArtifactKey, String> embeddedArtifacts;
+
+        final List<BundleEntry> entries;
+
+        ResolvedClasspath( Map<ArtifactKey, String> embeddedArtifacts, List<BundleEntry> entries )
+        {
+            this.embeddedArtifacts = embeddedArtifacts;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Shared by {@link #getAdditionalClasspathEntries(IJavaProject)} and
+     * {@link #getAdditionalSourceEntries(IJavaProject)}, both are called for every bundle of a launch.
+     */
+    private static final Map<IProject, ResolvedClasspath> resolvedClasspaths =
+        new ConcurrentHashMap<IProject, ResolvedClasspath>();
+
+    /**
+     * project -> sequence number of the last maven project change, resolved classpath is only cached if the project did
+     * not change while it was resolved. Entries of removed projects are evicted, resolutions that finish after the
+     * project was removed are not cached because the project is no longer accessible.
+     */
+    private static final Map<IProject, Long> generations = new ConcurrentHashMap<IProject, Long>();
+
+    private static final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Resolutions in progress, callers that ask for classpath of a bundle that is being resolved wait for the running
+     * resolution instead of resolving the bundle again.
+     */
+    private static final Map<IProject, CompletableFuture<ResolvedClasspath>> resolutions =
+        new ConcurrentHashMap<IProject, CompletableFuture<ResolvedClasspath>>();
+
+    private static final IMavenProjectChangedListener listener = new IMavenProjectChangedListener()
+    {
+        @Override
+        public void mavenProjectChanged( List<MavenProjectChangedEvent> events, IProgressMonitor monitor )
+        {
+            for ( MavenProjectChangedEvent event : events )
+            {
+                IProject project = event.getSource().getProject();
+                if ( MavenProjectChangedEvent.KIND_REMOVED == event.getKind() )
+                {
+                    generations.remove( project );
+                    resolvedClasspaths.remove( project );
+                }
+                else
+                {
+                    invalidate( project );
+                }
+                // runtime classpath of bundles that embed the changed project refers to it
+                for ( IProject embedding : EmbeddedArtifactIndex.getInstance().getEmbeddingProjects( event ) )
+                {
+                    invalidate( embedding );
+                }
+            }
+        }
+
+        private void invalidate( IProject project )
+        {
+            // bump before evicting, see getResolvedClasspath
+            generations.put( project, changes.incrementAndGet() );
+            resolvedClasspaths.remove( project );
+        }
+    };
+
+    /**
+     * Maven project change listener that evicts cached runtime classpath of changed and removed projects and of bundles
+     * that embed them.
+     */
+    public static IMavenProjectChangedListener getMavenProjectChangedListener()
+    {
+        return listener;
+    }
 
     @Override
     public Map<IPath, Collection<IPath>> getAdditionalClasspathEntries( IJavaProject javaProject )
     {
+        long start = System.nanoTime();
+
         IProgressMonitor monitor = new NullProgressMonitor();
 
         Map<IPath, Collection<IPath>> result = new LinkedHashMap<IPath, Collection<IPath>>();
 
-        List<IClasspathEntryDescriptor> cp = resolveMavenClasspath( javaProject, monitor );
-
         IProject project = javaProject.getProject();
 
-        if ( cp.isEmpty() )
-        {
-            return result;
-        }
-
         IWorkspaceRoot workspace = project.getWorkspace().getRoot();
-        Map<ArtifactKey, String> classpathMap = EmbeddedArtifacts.getEmbeddedArtifacts( project );
 
-        for ( IClasspathEntryDescriptor entry : cp )
+        for ( BundleEntry bundleEntry : getResolvedClasspath( javaProject, monitor ).entries )
         {
-            String pathStr = getBundlePath( classpathMap, entry );
-            if ( pathStr != null && !".".equals( pathStr ) ) // inlined dependencies are not supported at the moment
+            IClasspathEntryDescriptor entry = bundleEntry.entry;
+            String pathStr = bundleEntry.bundlePath;
+            if ( !".".equals( pathStr ) ) // inlined dependencies are not supported at the moment
             {
                 IPath path = new Path( pathStr );
                 switch ( entry.getEntryKind() )
@@ -90,6 +197,8 @@ public class PDEBundleClasspathResolver
             }
         }
 
+        trace( "classpath", project, start );
+
         return result;
     }
 
@@ -120,45 +229,158 @@ public class PDEBundleClasspathResolver
     {
         // igorf: Returned entries do not have attached sources. I am not actually sure this works.
 
+        long start = System.nanoTime();
+
         IProgressMonitor monitor = new NullProgressMonitor();
 
         Set<IRuntimeClasspathEntry> resolved = new LinkedHashSet<IRuntimeClasspathEntry>();
 
-        List<IClasspathEntryDescriptor> cp = resolveMavenClasspath( javaProject, monitor );
+        for ( BundleEntry bundleEntry : getResolvedClasspath( javaProject, monitor ).entries )
+        {
+            IClasspathEntryDescriptor entry = bundleEntry.entry;
+            switch ( entry.getEntryKind() )
+            {
+                case IClasspathEntry.CPE_PROJECT:
+                    addProjectEntries( resolved, entry.getPath(), CLASSPATH_SCOPE, getArtifactClassifier( entry ),
+                                       monitor );
+                    break;
+                case IClasspathEntry.CPE_LIBRARY:
+                    resolved.add( JavaRuntime.newArchiveRuntimeClasspathEntry( entry.getPath() ) );
+                    break;
+            }
+        }
+
+        trace( "source", javaProject.getProject(), start );
+
+        return resolved;
+    }
+
+    /**
+     * Resolves and caches runtime classpath of the project ahead of PDE launch, see
+     * {@link PDEBundleClasspathPrefetcher}. PDE asking for the bundle while it is prefetched waits for the prefetch.
+     * <p>
+     * The monitor is passed to m2e classpath resolution, which may not check it. Cancelling the monitor does not
+     * interrupt resolution that already started, its result is just not cached or shared. Callers waiting for a
+     * running resolution stop waiting when their monitor is cancelled or their thread is interrupted and resolve the
+     * bundle themselves.
+     */
+    void prefetch( IJavaProject javaProject, IProgressMonitor monitor )
+    {
+        getResolvedClasspath( javaProject, monitor );
+    }
+
+    private ResolvedClasspath getResolvedClasspath( IJavaProject javaProject, IProgressMonitor monitor )
+    {
+        IProject project = javaProject.getProject();
+        Map<ArtifactKey, String> embeddedArtifacts = EmbeddedArtifacts.getEmbeddedArtifacts( project );
+
+        ResolvedClasspath cached = resolvedClasspaths.get( project );
+        if ( cached != null && cached.embeddedArtifacts == embeddedArtifacts )
+        {
+            return cached;
+        }
 
-        if ( cp.isEmpty() )
+        // share resolution that is already running, usually a prefetch of the same bundle
+        CompletableFuture<ResolvedClasspath> resolution = new CompletableFuture<ResolvedClasspath>();
+        CompletableFuture<ResolvedClasspath> running = resolutions.putIfAbsent( project, resolution );
+        if ( running != null )
         {
-            return resolved;
+            ResolvedClasspath shared = await( running, monitor );
+            if ( shared != null && shared.embeddedArtifacts == embeddedArtifacts )
+            {
+                return shared;
+            }
+            // cancelled, interrupted or resolved for different Embedded-Artifacts
+            return resolve( javaProject, embeddedArtifacts, monitor );
         }
 
-        Map<ArtifactKey, String> classpathMap = EmbeddedArtifacts.getEmbeddedArtifacts( javaProject.getProject() );
+        ResolvedClasspath resolved = null;
+        try
+        {
+            resolved = resolve( javaProject, embeddedArtifacts, monitor );
+            return resolved;
+        }
+        finally
+        {
+            resolutions.remove( project, resolution );
+            // classpath of cancelled prefetch may be incomplete, waiting callers resolve it again
+            resolution.complete( monitor.isCanceled() ? null : resolved );
+        }
+    }
 
-        for ( IClasspathEntryDescriptor entry : cp )
+    /**
+     * Waits for the running resolution while the monitor is not cancelled and the thread is not interrupted, returns
+     * {@code null} if it stopped waiting or the resolution was cancelled.
+     */
+    private static ResolvedClasspath await( CompletableFuture<ResolvedClasspath> running, IProgressMonitor monitor )
+    {
+        try
         {
-            if ( isBundleClasspathEntry( classpathMap, entry ) )
+            while ( !monitor.isCanceled() )
             {
-                switch ( entry.getEntryKind() )
+                try
                 {
-                    case IClasspathEntry.CPE_PROJECT:
-                        addProjectEntries( resolved, entry.getPath(), CLASSPATH_SCOPE, getArtifactClassifier( entry ),
-                                           monitor );
-                        break;
-                    case IClasspathEntry.CPE_LIBRARY:
-                        resolved.add( JavaRuntime.newArchiveRuntimeClasspathEntry( entry.getPath() ) );
-                        break;
+                    return running.get( WAIT_MILLIS, TimeUnit.MILLISECONDS );
+                }
+                catch ( TimeoutException e )
+                {
+                    // check the monitor again
                 }
             }
         }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( ExecutionException e )
+        {
+            log.debug( "Shared bundle classpath resolution failed", e );
+        }
+        return null;
+    }
 
+    private ResolvedClasspath resolve( IJavaProject javaProject, Map<ArtifactKey, String> embeddedArtifacts,
+                                       IProgressMonitor monitor )
+    {
+        IProject project = javaProject.getProject();
+        Long generation = generations.get( project );
+        long start = System.nanoTime();
+        List<BundleEntry> entries = new ArrayList<BundleEntry>();
+        for ( IClasspathEntryDescriptor entry : resolveMavenClasspath( javaProject, monitor ) )
+        {
+            String bundlePath = getBundlePath( embeddedArtifacts, entry );
+            if ( bundlePath != null )
+            {
+                entries.add( new BundleEntry( entry, bundlePath ) );
+            }
+        }
+        ResolvedClasspath resolved = new ResolvedClasspath( embeddedArtifacts, entries );
+        if ( !monitor.isCanceled() )
+        {
+            // classpath of cancelled prefetch may be incomplete. Changes that happened during resolution bumped the
+            // generation, or evict the entry once compute returns, so stale classpath is never left behind
+            resolvedClasspaths.compute( project, ( p, current ) -> p.isAccessible()
+                && Objects.equals( generation, generations.get( p ) ) ? resolved : current );
+        }
+        Tracing.trace( log, Tracing.LAUNCH, "Resolved runtime classpath of bundle {} in {} ms, {} embedded entries",
+                       project.getName(), ( System.nanoTime() - start ) / 1000000L, entries.size() );
         return resolved;
     }
 
+    private static void trace( String kind, IProject project, long start )
+    {
+        Tracing.trace( log, Tracing.LAUNCH, "Additional {} entries of bundle {} computed in {} ms", kind,
+                       project.getName(), ( System.nanoTime() - start ) / 1000000L );
+    }
+
     protected List<IClasspathEntryDescriptor> resolveMavenClasspath( IJavaProject javaProject, IProgressMonitor monitor )
     {
         IProject project = javaProject.getProject();
         try
         {
             List<IClasspathEntryDescriptor> descriptors = new ArrayList<IClasspathEntryDescriptor>();
+            // looked up on use, registering the change listener does not activate m2e.jdt
+            IClasspathManager buildpathManager = MavenJdtPlugin.getDefault().getBuildpathManager();
             for ( IClasspathEntry cpe : buildpathManager.getClasspath( project, CLASSPATH_SCOPE, false, monitor ) )
             {
                 descriptors.add( new ClasspathEntryDescriptor( cpe ) );
@@ -173,19 +395,14 @@ public class PDEBundleClasspathResolver
         return Collections.emptyList();
     }
 
-    private String getBundlePath( Map<ArtifactKey, String> classpathMap, IClasspathEntryDescriptor entry )
+    private String getBundlePath( Map<ArtifactKey, String> embeddedArtifacts, IClasspathEntryDescriptor entry )
     {
         Map<String, String> attributes = entry.getClasspathAttributes();
         String g = attributes.get( IClasspathManager.GROUP_ID_ATTRIBUTE );
         String a = attributes.get( IClasspathManager.ARTIFACT_ID_ATTRIBUTE );
         String v = attributes.get( IClasspathManager.VERSION_ATTRIBUTE );
         String c = attributes.get( IClasspathManager.CLASSIFIER_ATTRIBUTE );
-        return classpathMap.get( new ArtifactKey( g, a, v, c ) );
-    }
-
-    private boolean isBundleClasspathEntry( Map<ArtifactKey, String> classpathMap, IClasspathEntryDescriptor entry )
-    {
-        return getBundlePath( classpathMap, entry ) != null;
+        return embeddedArtifacts.get( new ArtifactKey( g, a, v, c ) );
     }
 
     protected void addProjectEntries( Set<IRuntimeClasspathEntry> resolved, IPath path, int scope, String classifier,